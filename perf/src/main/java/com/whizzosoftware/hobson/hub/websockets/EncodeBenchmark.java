@@ -0,0 +1,58 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a single event payload, as the dispatcher does once per event and wire format. The "updates"
+ * parameter sets the number of variable updates in the event (0 encodes a device availability event instead).
+ *
+ * @author Dan Noguerol
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+    @Param({"0", "1", "10", "100"})
+    int updates;
+
+    @Param({"JSON", "CBOR"})
+    String format;
+
+    private WireFormat wireFormat;
+    private EventEncoder encoder;
+    private HobsonEvent event;
+    private long seq;
+
+    @Setup
+    public void setup() {
+        wireFormat = WireFormat.valueOf(format);
+        encoder = new EventEncoder(PooledByteBufAllocator.DEFAULT, new Metrics(null));
+        event = updates > 0 ? Events.variableUpdate(updates, Math.max(1, updates / 3), new Random(1)) : Events.deviceAvailable(1);
+    }
+
+    @Benchmark
+    public int encode() {
+        ByteBuf buf = encoder.encode(event, null, ++seq, wireFormat);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceAvailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.security.AccessManager;
+import com.whizzosoftware.hobson.api.security.HobsonUser;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates the synthetic events and stubs used by the benchmarks and the load generator. Events are modelled on what a
+ * typical hub produces: Z-Wave and Zigbee devices reporting a mix of boolean, numeric and string variables.
+ *
+ * @author Dan Noguerol
+ */
+class Events {
+    static final String PLUGIN_ID = "com.whizzosoftware.hobson.hub.hobson-hub-zwave";
+    // shaped like the hub's own encrypted (JWE) access tokens
+    static final String TOKEN = "eyJhbGciOiJkaXIiLCJlbmMiOiJBMTI4Q0JDLUhTMjU2In0..cGVyZi1pdg.cGVyZi1jaXBoZXJ0ZXh0.cGVyZi10YWc";
+
+    private static final String[] NAMES = {"on", "level", "temperature", "humidity", "energy", "status"};
+
+    private Events() {
+    }
+
+    /**
+     * Creates a variable update event.
+     *
+     * @param updates the number of variable updates in the event
+     * @param devices the number of distinct devices the updates are spread across
+     * @param random the source of values
+     *
+     * @return a DeviceVariablesUpdateEvent
+     */
+    static DeviceVariablesUpdateEvent variableUpdate(int updates, int devices, Random random) {
+        List<DeviceVariableUpdate> l = new ArrayList<>(updates);
+        for (int i = 0; i < updates; i++) {
+            DeviceContext dctx = device(random.nextInt(devices));
+            String name = NAMES[i % NAMES.length];
+            l.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, name), value(name, random), value(name, random)));
+        }
+        return new DeviceVariablesUpdateEvent(System.currentTimeMillis(), l);
+    }
+
+    /**
+     * Creates a variable update event for a single variable.
+     *
+     * @param device the device number
+     * @param name the variable name
+     * @param value the new value
+     *
+     * @return a DeviceVariablesUpdateEvent
+     */
+    static DeviceVariablesUpdateEvent variableUpdate(int device, String name, Object value) {
+        List<DeviceVariableUpdate> l = new ArrayList<>(1);
+        l.add(new DeviceVariableUpdate(DeviceVariableContext.create(device(device), name), null, value));
+        return new DeviceVariablesUpdateEvent(System.currentTimeMillis(), l);
+    }
+
+    static HobsonEvent deviceAvailable(int device) {
+        return new DeviceAvailableEvent(System.currentTimeMillis(), device(device));
+    }
+
+    static DeviceContext device(int device) {
+        return DeviceContext.createLocal(PLUGIN_ID, "node-" + device);
+    }
+
+    /**
+     * Creates an access manager that accepts any token, optionally taking a fixed time to do so (to stand in for
+     * token decryption and a user lookup).
+     *
+     * @param delayMicros the time each authentication takes in microseconds
+     *
+     * @return an AccessManager
+     */
+    static AccessManager accessManager(final long delayMicros) {
+        final HobsonUser user = new HobsonUser.Builder("perf").build();
+        return (AccessManager)Proxy.newProxyInstance(AccessManager.class.getClassLoader(), new Class[] {AccessManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("authenticate".equals(method.getName())) {
+                    if (delayMicros > 0) {
+                        long end = System.nanoTime() + delayMicros * 1000;
+                        while (System.nanoTime() < end) {
+                            // busy-wait so that short delays are accurate
+                        }
+                    }
+                    return user;
+                } else if ("toString".equals(method.getName())) {
+                    return "PerfAccessManager";
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a stub of a Hobson manager interface. Methods that return an interface return a stub of it; all other
+     * methods do nothing and return null, false or zero.
+     *
+     * @param type the interface
+     *
+     * @return a stub implementation
+     */
+    static <T> T stub(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Class<?> rt = method.getReturnType();
+                if ("toString".equals(method.getName())) {
+                    return "Stub" + type.getSimpleName();
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if (rt.isInterface()) {
+                    return stub(rt);
+                } else if (rt == boolean.class) {
+                    return false;
+                } else if (rt == void.class || !rt.isPrimitive()) {
+                    return null;
+                } else if (rt == long.class) {
+                    return 0L;
+                } else if (rt == double.class) {
+                    return 0.0;
+                } else if (rt == float.class) {
+                    return 0.0f;
+                } else if (rt == char.class) {
+                    return (char)0;
+                } else if (rt == byte.class) {
+                    return (byte)0;
+                } else if (rt == short.class) {
+                    return (short)0;
+                }
+                return 0;
+            }
+        }));
+    }
+
+    private static Object value(String name, Random random) {
+        switch (name) {
+            case "on":
+                return random.nextBoolean();
+            case "level":
+                return random.nextInt(100);
+            case "temperature":
+                return 15 + random.nextInt(150) / 10.0;
+            case "humidity":
+                return random.nextInt(100);
+            case "energy":
+                return random.nextDouble() * 1000;
+            default:
+                return random.nextBoolean() ? "ok" : "unavailable";
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures delivering one event to every connected client, using EmbeddedChannels in place of sockets. The
+ * "dispatch" benchmark goes through the EventDispatcher (routing, encoding once, per-connection queueing and flush
+ * coalescing); "channelGroup" is a plain ChannelGroup.writeAndFlush() of a pre-encoded frame for comparison. Each
+ * operation includes running the channels' pending flushes and discarding what they wrote.
+ *
+ * @author Dan Noguerol
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    @Param({"1", "100", "10000"})
+    int clients;
+
+    @Param({"JSON", "CBOR"})
+    String format;
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+    private ChannelGroup group;
+    private EventDispatcher dispatcher;
+    private EventEncoder encoder;
+    private HobsonEvent event;
+
+    @Setup
+    public void setup() {
+        WebSocketsConfig config = new WebSocketsConfig();
+        WireFormat wireFormat = WireFormat.valueOf(format);
+        SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+        group = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        Metrics metrics = new Metrics(group);
+        encoder = new EventEncoder(PooledByteBufAllocator.DEFAULT, metrics);
+        dispatcher = new EventDispatcher(group, subscriptions, encoder, config);
+        event = Events.variableUpdate(1, "level", 50);
+
+        for (int i = 0; i < clients; i++) {
+            EmbeddedChannel c = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            ClientConnection conn = new ClientConnection(c, config.getMaxQueuedFrames(), config.getOverflowPolicy(), metrics);
+            conn.setFormat(wireFormat, wireFormat.isBinary() ? encoder.getInterns() : null);
+            c.attr(ClientConnection.KEY).set(conn);
+            subscriptions.addChannel(c);
+            group.add(c);
+            channels.add(c);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel c : channels) {
+            c.close();
+            drain(c);
+        }
+        channels.clear();
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        dispatcher.dispatch(event, null);
+        drainAll();
+    }
+
+    @Benchmark
+    public void channelGroup() {
+        ByteBuf payload = encoder.encode(event, null, 0, WireFormat.JSON);
+        group.writeAndFlush(new TextWebSocketFrame(payload));
+        drainAll();
+    }
+
+    private void drainAll() {
+        for (EmbeddedChannel c : channels) {
+            drain(c);
+        }
+    }
+
+    private static void drain(EmbeddedChannel c) {
+        c.runPendingTasks();
+        Object o;
+        while ((o = c.readOutbound()) != null) {
+            ReferenceCountUtil.release(o);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures authorizing a handshake request with the Authorizer, using an access manager stub that takes a fixed
+ * time to verify a token. With "cached" set, the token cache answers every request after the first; without it,
+ * every request is verified.
+ *
+ * @author Dan Noguerol
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+    @Param({"true", "false"})
+    boolean cached;
+
+    @Param({"0", "200"})
+    long verifyMicros;
+
+    private EmbeddedChannel channel;
+    private int passed;
+
+    @Setup
+    public void setup() {
+        TokenCache tokenCache = new TokenCache(cached ? 1024 : 0, TimeUnit.MINUTES.toMillis(5));
+        channel = new EmbeddedChannel(new Authorizer(Events.accessManager(verifyMicros), tokenCache, new Metrics(null)), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                passed++;
+                ReferenceCountUtil.release(msg);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.close();
+    }
+
+    @Benchmark
+    public int authorize() {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/websockets");
+        req.headers().set(HttpHeaders.Names.AUTHORIZATION, "Bearer " + Events.TOKEN);
+        channel.writeInbound(req);
+        return passed;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, log-linear histogram of latencies that can report percentiles to within about 3%. Latencies are
+ * recorded in microseconds; each power of two above 64us is divided into 32 linear sub-buckets, so recording is a
+ * few shifts and an atomic increment.
+ *
+ * @author Dan Noguerol
+ */
+class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds the latencies recorded by another recorder to this one.
+     *
+     * @param other the other recorder
+     */
+    void add(LatencyRecorder other) {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.addAndGet(i, other.counts.get(i));
+        }
+        count.addAndGet(other.count.get());
+        long m;
+        while (other.max.get() > (m = max.get()) && !max.compareAndSet(m, other.max.get())) {
+            // retry
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency at a percentile.
+     *
+     * @param percentile the percentile (0 to 100)
+     *
+     * @return the latency in microseconds (the upper bound of the bucket the percentile falls in)
+     */
+    long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int)micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        if (magnitude >= MAGNITUDES) {
+            return MAGNITUDES * SUB_BUCKETS - 1;
+        }
+        return magnitude * SUB_BUCKETS + (int)((micros >> magnitude) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBound(int index) {
+        int magnitude = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return sub;
+        }
+        return ((sub + 1) << magnitude) - 1;
+    }
+}
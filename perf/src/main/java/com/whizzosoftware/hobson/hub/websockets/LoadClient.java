@@ -0,0 +1,161 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load test WebSocket client. It records the time from connecting to completing the handshake, the latency of
+ * each event it receives (the load generator puts the publish time in each update's value) and any gaps in the
+ * events' sequence numbers, which are events the server dropped for it.
+ *
+ * A slow client stops reading automatically and only reads from its socket periodically, so the server sees it
+ * fall behind the way a client on a poor connection would.
+ *
+ * @author Dan Noguerol
+ */
+class LoadClient extends SimpleChannelInboundHandler<Object> {
+    private final WebSocketClientHandshaker handshaker;
+    private final Stats stats;
+    private final Semaphore handshakes;
+    private final long slowReadMillis;
+    private final long connectStart = System.nanoTime();
+    private final Runnable readTask;
+    private ChannelHandlerContext ctx;
+    private long lastSeq = -1;
+    private boolean connected;
+    private boolean released;
+
+    /**
+     * Constructor.
+     *
+     * @param handshaker the handshaker for the server's WebSocket endpoint
+     * @param stats the statistics to record into
+     * @param handshakes a permit is released to this when the handshake completes or fails
+     * @param slowReadMillis the interval between reads for a slow client (or 0 for a normal client)
+     */
+    LoadClient(WebSocketClientHandshaker handshaker, Stats stats, Semaphore handshakes, long slowReadMillis) {
+        this.handshaker = handshaker;
+        this.stats = stats;
+        this.handshakes = handshakes;
+        this.slowReadMillis = slowReadMillis;
+        this.readTask = new Runnable() {
+            @Override
+            public void run() {
+                if (ctx.channel().isActive()) {
+                    ctx.read();
+                    ctx.executor().schedule(this, LoadClient.this.slowReadMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        handshaker.handshake(ctx.channel());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (connected) {
+            stats.disconnected.incrementAndGet();
+        } else {
+            stats.failed.incrementAndGet();
+            releaseHandshake();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ctx.close();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!handshaker.isHandshakeComplete()) {
+            handshaker.finishHandshake(ctx.channel(), (FullHttpResponse)msg);
+            connected = true;
+            stats.connected.incrementAndGet();
+            stats.setupLatency.record(System.nanoTime() - connectStart);
+            releaseHandshake();
+            if (slowReadMillis > 0) {
+                ctx.channel().config().setAutoRead(false);
+                ctx.executor().schedule(readTask, slowReadMillis, TimeUnit.MILLISECONDS);
+            }
+        } else if (msg instanceof TextWebSocketFrame) {
+            received(((TextWebSocketFrame)msg).text());
+        } else if (msg instanceof PingWebSocketFrame) {
+            ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame)msg).content().retain()));
+        } else if (msg instanceof CloseWebSocketFrame) {
+            ctx.close();
+        }
+    }
+
+    private void releaseHandshake() {
+        if (!released) {
+            released = true;
+            handshakes.release();
+        }
+    }
+
+    private void received(String text) {
+        long now = System.nanoTime();
+        JSONObject json = new JSONObject(text);
+        JSONObject props = json.optJSONObject("properties");
+        JSONArray updates = props != null ? props.optJSONArray("updates") : null;
+        if (updates == null || !json.has("seq")) {
+            // not a variable update (e.g. the initial snapshot)
+            return;
+        }
+
+        long seq = json.getLong("seq");
+        if (lastSeq > -1 && seq > lastSeq + 1) {
+            stats.dropped.addAndGet(seq - lastSeq - 1);
+        }
+        lastSeq = Math.max(lastSeq, seq);
+
+        for (int i = 0; i < updates.length(); i++) {
+            long published = updates.getJSONObject(i).optLong("newValue", 0);
+            if (published > 0) {
+                stats.latency.record(now - published);
+                stats.received.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The statistics for a group of clients.
+     */
+    static class Stats {
+        final LatencyRecorder setupLatency = new LatencyRecorder();
+        final LatencyRecorder latency = new LatencyRecorder();
+        final AtomicLong connected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong disconnected = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.hub.HubManager;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.security.AccessManager;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator that runs the plugin on loopback with stub Hobson managers, connects a large number of WebSocket
+ * clients to it and publishes variable updates at a fixed rate. A fraction of the clients read slowly. It reports:
+ *
+ * - connection setup rate and latency
+ * - event-to-client latency percentiles for normal and slow clients
+ * - events dropped for each group of clients (detected from gaps in the events' sequence numbers)
+ * - heap and server CPU time per connection
+ *
+ * The clients run in the same JVM as the server, so the heap figures include the clients' share. Server CPU time is
+ * measured from the plugin's own threads.
+ *
+ * Options are given as name=value arguments; run with "help" to list them.
+ *
+ * @author Dan Noguerol
+ */
+public class LoadGenerator {
+    private static final String SERVER_THREAD_PREFIX = "hobson-websockets-";
+    private static final String[] VARIABLES = {"on", "level", "temperature", "humidity", "energy"};
+
+    private final Map<String,String> options = new HashMap<>();
+    private final LoadClient.Stats normal = new LoadClient.Stats();
+    private final LoadClient.Stats slow = new LoadClient.Stats();
+    private final List<Channel> channels = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator lg = new LoadGenerator();
+        for (String a : args) {
+            int ix = a.indexOf('=');
+            if (ix > 0) {
+                lg.options.put(a.substring(0, ix), a.substring(ix + 1));
+            } else {
+                usage();
+                return;
+            }
+        }
+        lg.run();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: LoadGenerator [name=value ...]");
+        System.out.println("  clients=1000        number of WebSocket clients");
+        System.out.println("  slowFraction=0.05   fraction of clients that read slowly");
+        System.out.println("  slowReadMillis=200  interval between socket reads for slow clients");
+        System.out.println("  rate=200            events published per second");
+        System.out.println("  devices=100         number of devices the events are spread across");
+        System.out.println("  duration=30         publishing time in seconds");
+        System.out.println("  connectConcurrency=200  maximum handshakes in progress");
+        System.out.println("  clientThreads=0     client event loop threads (0 for the Netty default)");
+        System.out.println("  port=18184          server port");
+        System.out.println("  overflowPolicy=dropOldest  the server's overflow policy for slow clients");
+    }
+
+    private void run() throws Exception {
+        int clients = getInt("clients", 1000);
+        double slowFraction = Double.parseDouble(get("slowFraction", "0.05"));
+        long slowReadMillis = getInt("slowReadMillis", 200);
+        int rate = getInt("rate", 200);
+        int devices = getInt("devices", 100);
+        int duration = getInt("duration", 30);
+        int port = getInt("port", 18184);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = usedHeap(memory);
+
+        WebSocketsPlugin plugin = new LoadTestPlugin();
+        plugin.onStartup(newConfig(port));
+        EventLoopGroup clientGroup = new NioEventLoopGroup(getInt("clientThreads", 0), new DefaultThreadFactory("loadgen-client", true));
+
+        try {
+            System.out.println("Connecting " + clients + " clients...");
+            long start = System.nanoTime();
+            connect(clientGroup, port, clients, slowFraction, slowReadMillis);
+            double connectSeconds = (System.nanoTime() - start) / 1e9;
+            long connected = normal.connected.get() + slow.connected.get();
+            long failed = normal.failed.get() + slow.failed.get();
+            long heapPerConnection = connected > 0 ? (usedHeap(memory) - heapBefore) / connected : 0;
+
+            System.out.println("Publishing " + rate + " events/s for " + duration + "s...");
+            long cpuBefore = getServerCpuNanos();
+            long published = publish(plugin, rate, devices, duration);
+            // give the server time to deliver what it has queued
+            Thread.sleep(2000);
+            long cpu = getServerCpuNanos() - cpuBefore;
+
+            System.out.println();
+            System.out.println("Connections");
+            System.out.println(String.format("  connected %d, failed %d in %.2fs (%.0f/s)", connected, failed, connectSeconds, connected / connectSeconds));
+            System.out.println("  setup latency " + percentiles(normal.setupLatency, slow.setupLatency));
+            System.out.println("  heap per connection " + heapPerConnection + " bytes (client and server)");
+            System.out.println();
+            System.out.println("Events: " + published + " published");
+            report("normal clients", normal, published);
+            report("slow clients", slow, published);
+            System.out.println();
+            System.out.println("Server CPU");
+            System.out.println(String.format("  %.0f ms total, %.1f us per delivered event, %.2f ms per connection per second",
+                cpu / 1e6,
+                cpu / 1e3 / Math.max(1, normal.received.get() + slow.received.get()),
+                cpu / 1e6 / Math.max(1, connected) / duration));
+        } finally {
+            for (Channel c : channels) {
+                c.close();
+            }
+            clientGroup.shutdownGracefully().awaitUninterruptibly();
+            plugin.onShutdown();
+        }
+    }
+
+    /**
+     * Connects the clients, limiting the number of handshakes in progress, and waits for all of them to complete or
+     * fail. The slow clients are spread evenly through the connection order.
+     */
+    private void connect(EventLoopGroup group, int port, int clients, double slowFraction, final long slowReadMillis) throws Exception {
+        final URI uri = new URI("ws://127.0.0.1:" + port + "/websockets");
+        final HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(HttpHeaders.Names.AUTHORIZATION, "Bearer " + Events.TOKEN);
+        int concurrency = Math.max(1, getInt("connectConcurrency", 200));
+        final Semaphore handshakes = new Semaphore(concurrency);
+        long slowClients = Math.round(clients * slowFraction);
+
+        Bootstrap b = new Bootstrap();
+        b.group(group).channel(NioSocketChannel.class).option(ChannelOption.TCP_NODELAY, true);
+
+        for (long i = 0; i < clients; i++) {
+            final boolean isSlow = (i * slowClients) / clients != ((i + 1) * slowClients) / clients;
+            final LoadClient.Stats stats = isSlow ? slow : normal;
+            handshakes.acquire();
+            ChannelFuture f = b.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    if (isSlow) {
+                        // a small receive window makes the server's writes back up quickly
+                        ch.config().setReceiveBufferSize(4096);
+                    }
+                    ch.pipeline().addLast(new HttpClientCodec());
+                    ch.pipeline().addLast(new HttpObjectAggregator(65536));
+                    ch.pipeline().addLast(new LoadClient(WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null, false, headers), stats, handshakes, isSlow ? slowReadMillis : 0));
+                }
+            }).connect(uri.getHost(), uri.getPort());
+            f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        stats.failed.incrementAndGet();
+                        handshakes.release();
+                    }
+                }
+            });
+            channels.add(f.channel());
+        }
+
+        if (!handshakes.tryAcquire(concurrency, 60, TimeUnit.SECONDS)) {
+            System.out.println("Timed out waiting for " + (concurrency - handshakes.availablePermits()) + " handshakes");
+        }
+    }
+
+    /**
+     * Publishes single-variable updates at a fixed rate, putting the publish time in each update's value so clients
+     * can compute the delivery latency.
+     *
+     * @return the number of events published
+     */
+    private long publish(WebSocketsPlugin plugin, int rate, int devices, int duration) {
+        Random random = new Random();
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        long next = System.nanoTime();
+        long published = 0;
+        while (next < end) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            plugin.onDeviceEvent(Events.variableUpdate(random.nextInt(devices), VARIABLES[random.nextInt(VARIABLES.length)], System.nanoTime()));
+            published++;
+            next += interval;
+        }
+        return published;
+    }
+
+    private void report(String name, LoadClient.Stats stats, long published) {
+        long clients = stats.connected.get();
+        if (clients == 0) {
+            return;
+        }
+        long expected = clients * published;
+        System.out.println(String.format("  %s (%d): received %d of %d, dropped %d, disconnected %d", name, clients, stats.received.get(), expected, stats.dropped.get(), stats.disconnected.get()));
+        System.out.println("    latency " + percentiles(stats.latency));
+    }
+
+    private static String percentiles(LatencyRecorder... recorders) {
+        LatencyRecorder r = new LatencyRecorder();
+        for (LatencyRecorder lr : recorders) {
+            r.add(lr);
+        }
+        return String.format("p50 %.2fms, p90 %.2fms, p99 %.2fms, p99.9 %.2fms, max %.2fms",
+            r.getPercentileMicros(50) / 1e3, r.getPercentileMicros(90) / 1e3, r.getPercentileMicros(99) / 1e3,
+            r.getPercentileMicros(99.9) / 1e3, r.getMaxMicros() / 1e3);
+    }
+
+    /**
+     * Returns the CPU time used so far by the plugin's threads (event loops, dispatch and conflation threads).
+     */
+    private static long getServerCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (ThreadInfo ti : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (ti != null && ti.getThreadName().startsWith(SERVER_THREAD_PREFIX)) {
+                long t = threads.getThreadCpuTime(ti.getThreadId());
+                if (t > 0) {
+                    total += t;
+                }
+            }
+        }
+        return total;
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the plugin configuration: admission control is disabled since all clients share one address.
+     */
+    private PropertyContainer newConfig(int port) {
+        final Map<String,Object> props = new HashMap<>();
+        props.put(WebSocketsConfig.PROP_PORT, port);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECTIONS, 0);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECTIONS_PER_ADDRESS, 0);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECT_RATE, 0);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECT_RATE_PER_ADDRESS, 0);
+        props.put(WebSocketsConfig.PROP_OVERFLOW_POLICY, get("overflowPolicy", OverflowPolicy.DROP_OLDEST.toString()));
+        return new PropertyContainer() {
+            @Override
+            public Object getPropertyValue(String name) {
+                return props.get(name);
+            }
+        };
+    }
+
+    private String get(String name, String def) {
+        String s = options.get(name);
+        return s != null ? s : def;
+    }
+
+    private int getInt(String name, int def) {
+        return Integer.parseInt(get(name, Integer.toString(def)));
+    }
+
+    /**
+     * The plugin with stub Hobson managers. Any token is accepted.
+     */
+    private static class LoadTestPlugin extends WebSocketsPlugin {
+        private final AccessManager accessManager = Events.accessManager(0);
+        private final HubManager hubManager = Events.stub(HubManager.class);
+        private final TaskManager taskManager = Events.stub(TaskManager.class);
+
+        LoadTestPlugin() {
+            super("com.whizzosoftware.hobson.hub.hobson-hub-websockets", "0.0.0", "Load test");
+        }
+
+        @Override
+        public AccessManager getAccessManager() {
+            return accessManager;
+        }
+
+        @Override
+        public HubManager getHubManager() {
+            return hubManager;
+        }
+
+        @Override
+        public TaskManager getTaskManager() {
+            return taskManager;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples the Hobson event bus from the WebSocket delivery path. Event handlers only enqueue events into a bounded
+ * ring buffer and return; one or more dedicated threads dequeue them and perform task lookups, encoding and fan-out.
+ *
+ * With a single thread (the default), events are delivered to clients in the order they were received. With more
+ * than one thread, ordering across events is not guaranteed.
+ *
+ * @author Dan Noguerol
+ */
+class AsyncDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncDispatcher.class);
+
+    private final RingBuffer<Item> ring;
+    private final Semaphore available = new Semaphore(0);
+    private final int threadCount;
+    private final Handler handler;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final Histogram latency = new Histogram(Histogram.WIDE_BOUNDS);
+    private volatile boolean running;
+
+    AsyncDispatcher(int capacity, int threadCount, Handler handler) {
+        this.ring = new RingBuffer<>(capacity);
+        this.threadCount = Math.max(1, threadCount);
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the dispatch threads.
+     */
+    synchronized void start() {
+        if (!running) {
+            running = true;
+            ThreadFactory tf = new DefaultThreadFactory("hobson-websockets-dispatch", true);
+            for (int i = 0; i < threadCount; i++) {
+                Thread t = tf.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AsyncDispatcher.this.run();
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the dispatch threads and discards any events that have not been processed.
+     */
+    synchronized void stop() {
+        if (running) {
+            running = false;
+            available.release(threadCount);
+            for (Thread t : threads) {
+                t.interrupt();
+                try {
+                    t.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            threads.clear();
+            while (ring.poll() != null) {
+                available.tryAcquire();
+            }
+        }
+    }
+
+    /**
+     * Queues an event for dispatch. This never blocks.
+     *
+     * @param event the event
+     *
+     * @return false if the queue was full and the event was dropped
+     */
+    boolean enqueue(HobsonEvent event) {
+        if (ring.offer(new Item(event, System.nanoTime()))) {
+            available.release();
+            return true;
+        } else {
+            if (rejected.incrementAndGet() % 1000 == 1) {
+                logger.warn("WebSocket dispatch queue is full; {} events dropped so far", rejected.get());
+            }
+            return false;
+        }
+    }
+
+    int getQueueDepth() {
+        return ring.size();
+    }
+
+    int getQueueCapacity() {
+        return ring.capacity();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the distribution of the time between events being enqueued and their writes being issued to client
+     * channels.
+     *
+     * @return a Histogram
+     */
+    Histogram getLatency() {
+        return latency;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (!available.tryAcquire(1, TimeUnit.SECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            // a permit guarantees an item has been published, but a racing consumer may still be claiming its slot
+            Item item;
+            while ((item = ring.poll()) == null && running) {
+                Thread.yield();
+            }
+            if (item == null) {
+                break;
+            }
+
+            try {
+                handler.handle(item.event);
+            } catch (Throwable t) {
+                logger.error("Error dispatching event: " + item.event, t);
+            }
+
+            processed.incrementAndGet();
+            latency.record(System.nanoTime() - item.enqueueNanos);
+        }
+    }
+
+    /**
+     * Processes dequeued events.
+     */
+    interface Handler {
+        void handle(HobsonEvent event);
+    }
+
+    private static class Item {
+        final HobsonEvent event;
+        final long enqueueNanos;
+
+        Item(HobsonEvent event, long enqueueNanos) {
+            this.event = event;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+}
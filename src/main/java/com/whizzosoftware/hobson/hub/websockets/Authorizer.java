@@ -22,7 +22,8 @@ import java.util.Set;
 
 /**
  * Channel handler that verifies the presence of an access token and passes along the request for further
- * processing if found and valid.
+ * processing if found and valid. Tokens that have been verified recently are served from a cache. Requests
+ * that fail authentication or authorization receive a 401 response and the connection is closed.
  *
  * @author Dan Noguerol
  */
@@ -30,16 +31,76 @@ public class Authorizer extends SimpleChannelInboundHandler<FullHttpRequest> {
     private static final Logger logger = LoggerFactory.getLogger(Authorizer.class);
 
     private AccessManager accessManager;
+    private TokenCache tokenCache;
+    private Metrics metrics;
 
-    Authorizer(AccessManager accessManager) {
+    Authorizer(AccessManager accessManager, TokenCache tokenCache, Metrics metrics) {
         super();
         this.accessManager = accessManager;
+        this.tokenCache = tokenCache;
+        this.metrics = metrics;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest message) throws Exception {
         logger.trace("channelRead0: {}", message);
 
+        String token = getToken(message);
+
+        // if we found a token, process the message
+        if (token != null) {
+            long start = System.nanoTime();
+            try {
+                HobsonUser user = authorize(accessManager, tokenCache, token);
+                metrics.recordAuthorization(System.nanoTime() - start);
+                if (user != null) {
+                    logger.trace("Found token, passing message along");
+                    ctx.fireChannelRead(message.retain());
+                    return;
+                }
+                logger.debug("Token did not resolve to a user; closing connection");
+            } catch (Exception e) {
+                metrics.recordAuthorization(System.nanoTime() - start);
+                logger.debug("Token decryption error; closing connection", e);
+            }
+        } else {
+            logger.debug("No token found; closing connection");
+        }
+
+        HandshakeGuard.reject(ctx, HttpResponseStatus.UNAUTHORIZED);
+    }
+
+    /**
+     * Authenticates an access token and authorizes its user to read hub data, using the token cache if possible.
+     *
+     * @param accessManager the access manager
+     * @param tokenCache the token cache
+     * @param token the token
+     *
+     * @return the token's user or null if it didn't resolve to one
+     *
+     * @throws Exception if the token is invalid or its user isn't authorized
+     */
+    static HobsonUser authorize(AccessManager accessManager, TokenCache tokenCache, String token) throws Exception {
+        HobsonUser user = tokenCache.get(token);
+        if (user == null) {
+            user = accessManager.authenticate(token);
+            accessManager.authorize(user, AuthorizationAction.HUB_READ, null);
+            if (user != null) {
+                tokenCache.put(token, user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Returns the access token from a request's Authorization header or, failing that, its "Token" cookie.
+     *
+     * @param message the request
+     *
+     * @return the token or null if the request has none
+     */
+    static String getToken(HttpRequest message) {
         // attempt to get token from header and then from cookie
         String token = null;
         String h = HttpHeaders.getHeader(message, "Authorization");
@@ -58,25 +119,6 @@ public class Authorizer extends SimpleChannelInboundHandler<FullHttpRequest> {
                 }
             }
         }
-
-        // if we found a token, process the message
-        if (token != null) {
-            try {
-                HobsonUser user = accessManager.authenticate(token);
-                accessManager.authorize(user, AuthorizationAction.HUB_READ, null);
-                if (user != null) {
-                    logger.trace("Found token, passing message along");
-                    ctx.fireChannelRead(message.retain());
-                }
-            } catch (Exception e) {
-                logger.debug("Token decryption error", e);
-            }
-        } else {
-            logger.debug("No token found; closing connection");
-            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.UNAUTHORIZED);
-            response.headers().add("Content-Length", 0);
-            ctx.writeAndFlush(response);
-            ctx.close();
-        }
+        return token;
     }
 }
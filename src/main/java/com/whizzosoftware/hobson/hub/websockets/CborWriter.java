@@ -0,0 +1,402 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal streaming CBOR (RFC 7049) writer that encodes directly into a ByteBuf. Objects and arrays are written
+ * with indefinite lengths so nothing needs to be buffered. Numbers are written as CBOR integers or floats.
+ *
+ * Member names and identifiers are written as a reference to their entry in an intern table: TAG_INTERNED followed
+ * by the entry's ID. The IDs are assigned out of band rather than implicitly by position, so this is a tag of the
+ * protocol's own rather than tag 25 (stringref), which is only meaningful inside a tag 256 namespace. Clients learn
+ * the entries from "intern" messages, which are always sent before the first payload that references them.
+ *
+ * @author Dan Noguerol
+ */
+class CborWriter implements EventWriter {
+    /**
+     * The tag that marks an interned string reference; from IANA's first come first served range.
+     */
+    static final int TAG_INTERNED = 35595;
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1 << 5;
+    private static final int MAJOR_BYTES = 2 << 5;
+    private static final int MAJOR_TEXT = 3 << 5;
+    private static final int MAJOR_ARRAY = 4 << 5;
+    private static final int MAJOR_MAP = 5 << 5;
+    private static final int MAJOR_TAG = 6 << 5;
+    private static final int INDEFINITE = 31;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    private static final int BREAK = 0xff;
+    private static final String VARIABLES = "/variables/";
+    private static final String TASKS = "/tasks/";
+
+    private final ByteBuf buf;
+    private final InternTable interns;
+
+    /**
+     * Constructor.
+     *
+     * @param buf the buffer to write to
+     * @param interns the intern table (or null to write all strings inline)
+     */
+    CborWriter(ByteBuf buf, InternTable interns) {
+        this.buf = buf;
+        this.interns = interns;
+    }
+
+    /**
+     * Encodes an "intern" message declaring intern table entries.
+     *
+     * @param interns the intern table
+     * @param ids the IDs of the entries
+     * @param alloc the allocator for the message buffer
+     *
+     * @return a ByteBuf containing the CBOR encoded message
+     */
+    static ByteBuf encodeDeclaration(InternTable interns, List<Integer> ids, ByteBufAllocator alloc) {
+        ByteBuf buf = alloc.directBuffer(64 + ids.size() * 32);
+        try {
+            CborWriter w = new CborWriter(buf, null);
+            w.beginObject();
+            w.field("id", "intern");
+            w.name("properties").beginObject();
+            w.field("ids", ids);
+            w.field("strings", interns.getStrings(ids));
+            w.endObject();
+            w.endObject();
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the IDs of the intern table entries a payload written by this class references. Only the heads of the
+     * payload's items are read, so this is much cheaper than encoding it.
+     *
+     * @param payload the payload (its reader index is not changed)
+     *
+     * @return an array of IDs (which may contain duplicates)
+     */
+    static int[] getInternedIds(ByteBuf payload) {
+        int[] ids = new int[8];
+        int count = 0;
+        boolean tagged = false;
+        int ix = payload.readerIndex();
+        int end = payload.writerIndex();
+        while (ix < end) {
+            int b = payload.getUnsignedByte(ix++);
+            int major = b & 0xe0;
+            int info = b & 0x1f;
+            long value;
+            if (info < 24) {
+                value = info;
+            } else if (info == 24) {
+                value = payload.getUnsignedByte(ix);
+                ix += 1;
+            } else if (info == 25) {
+                value = payload.getUnsignedShort(ix);
+                ix += 2;
+            } else if (info == 26) {
+                value = payload.getUnsignedInt(ix);
+                ix += 4;
+            } else if (info == 27) {
+                value = payload.getLong(ix);
+                ix += 8;
+            } else {
+                // an indefinite length container or a break
+                value = -1;
+            }
+            if (tagged && major == MAJOR_UNSIGNED) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = (int)value;
+            } else if (major == MAJOR_TEXT || major == MAJOR_BYTES) {
+                ix += value;
+            }
+            tagged = major == MAJOR_TAG && value == TAG_INTERNED;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    @Override
+    public CborWriter beginObject() {
+        buf.writeByte(MAJOR_MAP | INDEFINITE);
+        return this;
+    }
+
+    @Override
+    public CborWriter endObject() {
+        buf.writeByte(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter beginArray() {
+        buf.writeByte(MAJOR_ARRAY | INDEFINITE);
+        return this;
+    }
+
+    @Override
+    public CborWriter endArray() {
+        buf.writeByte(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter name(String name) {
+        writeInterned(name);
+        return this;
+    }
+
+    @Override
+    public CborWriter field(String name, Object value) {
+        if (value != null) {
+            name(name);
+            value(value);
+        }
+        return this;
+    }
+
+    @Override
+    public CborWriter field(String name, long value) {
+        name(name);
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public CborWriter field(String name, boolean value) {
+        name(name);
+        buf.writeByte(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public CborWriter idField(String name, String value) {
+        if (value != null) {
+            name(name);
+            writeInterned(value);
+        }
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CborWriter value(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            buf.writeByte(NULL);
+        } else if (value instanceof String) {
+            writeString((String)value);
+        } else if (value instanceof Boolean) {
+            buf.writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number)value).longValue());
+        } else if (value instanceof Float) {
+            buf.writeByte(FLOAT32);
+            buf.writeInt(Float.floatToIntBits((Float)value));
+        } else if (value instanceof Double) {
+            writeDouble((Double)value);
+        } else if (value instanceof Number) {
+            Number n = (Number)value;
+            double d = n.doubleValue();
+            long l = n.longValue();
+            if (d == l) {
+                writeLong(l);
+            } else {
+                writeDouble(d);
+            }
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<Object,Object> e : ((Map<Object,Object>)value).entrySet()) {
+                field(String.valueOf(e.getKey()), e.getValue());
+            }
+            endObject();
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object o : (Collection<Object>)value) {
+                value(o);
+            }
+            endArray();
+        } else if (value.getClass().isArray()) {
+            beginArray();
+            int len = Array.getLength(value);
+            for (int i = 0; i < len; i++) {
+                value(Array.get(value, i));
+            }
+            endArray();
+        } else if (value instanceof JSONObject) {
+            JSONObject o = (JSONObject)value;
+            beginObject();
+            for (Iterator<?> it = o.keys(); it.hasNext(); ) {
+                String key = String.valueOf(it.next());
+                field(key, o.opt(key));
+            }
+            endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray a = (JSONArray)value;
+            beginArray();
+            for (int i = 0; i < a.length(); i++) {
+                value(a.opt(i));
+            }
+            endArray();
+        } else if (value instanceof JSONString && ((JSONString)value).toJSONString() != null) {
+            // the value's own JSON is parsed so that it is encoded as the same structure in CBOR
+            value(new JSONTokener(((JSONString)value).toJSONString()).nextValue());
+        } else {
+            writeString(value.toString());
+        }
+        return this;
+    }
+
+    @Override
+    public CborWriter deviceUri(String hubId, String pluginId, String deviceId, String variable) {
+        String uri = "/api/v1/hubs/" + hubId + "/plugins/local/" + pluginId + "/devices/" + deviceId;
+        if (variable != null) {
+            // there are far more variables than devices; interning each of their URIs would mostly fill the table
+            // with strings that are rarely repeated
+            writeString(uri + VARIABLES + variable);
+        } else {
+            writeInterned(uri);
+        }
+        return this;
+    }
+
+    @Override
+    public CborWriter pluginUri(String hubId, String pluginId) {
+        writeInterned("/api/v1/hubs/" + hubId + "/plugins/local/" + pluginId);
+        return this;
+    }
+
+    @Override
+    public CborWriter taskUri(String hubId, String taskId) {
+        writeInterned("/api/v1/hubs/" + hubId + TASKS + taskId);
+        return this;
+    }
+
+    private void writeInterned(String s) {
+        int id = s != null && interns != null ? interns.getId(s) : -1;
+        if (id > -1) {
+            writeHead(MAJOR_TAG, TAG_INTERNED);
+            writeHead(MAJOR_UNSIGNED, id);
+        } else if (s != null) {
+            writeString(s);
+        } else {
+            buf.writeByte(NULL);
+        }
+    }
+
+    private void writeHead(int major, long value) {
+        if (value < 24) {
+            buf.writeByte(major | (int)value);
+        } else if (value < 0x100) {
+            buf.writeByte(major | 24);
+            buf.writeByte((int)value);
+        } else if (value < 0x10000) {
+            buf.writeByte(major | 25);
+            buf.writeShort((int)value);
+        } else if (value < 0x100000000L) {
+            buf.writeByte(major | 26);
+            buf.writeInt((int)value);
+        } else {
+            buf.writeByte(major | 27);
+            buf.writeLong(value);
+        }
+    }
+
+    private void writeLong(long v) {
+        if (v >= 0) {
+            writeHead(MAJOR_UNSIGNED, v);
+        } else {
+            writeHead(MAJOR_NEGATIVE, -1 - v);
+        }
+    }
+
+    private void writeDouble(double d) {
+        float f = (float)d;
+        if (f == d || Double.isNaN(d)) {
+            // the value survives the narrowing, so the shorter encoding loses nothing
+            buf.writeByte(FLOAT32);
+            buf.writeInt(Float.floatToIntBits(f));
+        } else {
+            buf.writeByte(FLOAT64);
+            buf.writeLong(Double.doubleToLongBits(d));
+        }
+    }
+
+    /**
+     * Writes a definite length text string. Unpaired surrogates are replaced with '?', as String.getBytes() does.
+     */
+    private void writeString(String s) {
+        int len = s.length();
+        int utf8Length = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utf8Length++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+
+        writeHead(MAJOR_TEXT, utf8Length);
+        buf.ensureWritable(utf8Length);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.writeByte(c);
+            } else if (c < 0x800) {
+                buf.writeByte(0xc0 | (c >> 6));
+                buf.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.writeByte(0xf0 | (cp >> 18));
+                buf.writeByte(0x80 | ((cp >> 12) & 0x3f));
+                buf.writeByte(0x80 | ((cp >> 6) & 0x3f));
+                buf.writeByte(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf.writeByte('?');
+            } else {
+                buf.writeByte(0xe0 | (c >> 12));
+                buf.writeByte(0x80 | ((c >> 6) & 0x3f));
+                buf.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+}
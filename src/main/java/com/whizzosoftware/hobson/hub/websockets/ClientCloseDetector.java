@@ -0,0 +1,33 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+
+/**
+ * Records that a client closed its connection. The WebSocket protocol handler answers close frames itself without
+ * passing them on, so this handler sits in front of it and notes the close as the connection's close reason.
+ *
+ * @author Dan Noguerol
+ */
+class ClientCloseDetector extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CloseWebSocketFrame) {
+            ClientConnection conn = ClientConnection.get(ctx.channel());
+            if (conn != null) {
+                conn.setCloseReason(ClientConnection.CLOSED_BY_CLIENT);
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-connection outbound state. Frames are written straight to the channel while it is writable; once the
+ * channel's write buffer passes its high water mark, frames are held in a bounded queue until it drains below the
+ * low water mark. When the queue is full, the configured overflow policy decides what gets discarded.
+ *
+ * Frames written during one event loop tick share a single flush. A connection can also opt into batching, in which
+ * case the payloads produced during a tick (or a short interval) are sent as one array frame.
+ *
+ * Payloads are sent as text or binary frames depending on the connection's wire format. For binary formats, the
+ * intern table entries a payload references that the client hasn't seen yet are declared just before the payload is
+ * written to the channel, so declarations are never dropped along with a queued frame and a client is only told
+ * about the entries it actually needs.
+ *
+ * If the client negotiated permessage-deflate, payloads are sent compressed when that makes them smaller. Broadcast
+ * payloads arrive already compressed (so they are compressed once for all clients); anything else is compressed
+ * here.
+ *
+ * The connection keeps counts of what it writes for the metrics endpoint, along with the reason it was closed.
+ *
+ * All queue manipulation happens on the channel's event loop.
+ *
+ * @author Dan Noguerol
+ */
+class ClientConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ClientConnection.class);
+
+    static final AttributeKey<ClientConnection> KEY = AttributeKey.valueOf("hobson.clientConnection");
+
+    /**
+     * The close code sent when a client is disconnected for being too slow (RFC 6455 "policy violation").
+     */
+    static final int CLOSE_TOO_SLOW = 1008;
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    static final int MAX_BATCH_SIZE = 256;
+    static final long MAX_BATCH_INTERVAL = 1000;
+
+    /**
+     * Disconnect reasons: the client closed the connection, the client couldn't keep up, an error occurred or the
+     * connection was lost without either side closing it.
+     */
+    static final String CLOSED_BY_CLIENT = "client";
+    static final String CLOSED_TOO_SLOW = "slow";
+    static final String CLOSED_ERROR = "error";
+    static final String CLOSED_LOST = "lost";
+    static final String CLOSED_IDLE = "idle";
+
+    private final Channel channel;
+    private final Metrics metrics;
+    private final int slot;
+    private final int maxQueuedFrames;
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<String,Entry> coalesceIndex = new HashMap<>();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final List<ByteBuf> batch = new ArrayList<>();
+    private final List<int[]> batchInternedIds = new ArrayList<>();
+    private final BitSet declaredInterns = new BitSet();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+    private final ChannelFutureListener writeListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                metrics.writeFailed();
+            }
+        }
+    };
+    private final Runnable batchTask = new Runnable() {
+        @Override
+        public void run() {
+            flushBatch();
+        }
+    };
+    private boolean closed;
+    private boolean flushScheduled;
+    private volatile boolean batching;
+    private long batchIntervalMillis;
+    private boolean batchScheduled;
+    private long resumeSequence;
+    private volatile MessageCompressor compressor;
+    private volatile int maxCompressedSize;
+    private volatile WireFormat format = WireFormat.JSON;
+    private InternTable interns;
+    private volatile String closeReason;
+    // the following are only modified on the channel's event loop
+    private volatile long bytesWritten;
+    private volatile long framesWritten;
+    private volatile long flushes;
+    private volatile long queuedBytes;
+
+    ClientConnection(Channel channel, int maxQueuedFrames, OverflowPolicy overflowPolicy, Metrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.slot = metrics.acquireSlot();
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the connection state associated with a channel.
+     *
+     * @param channel the channel
+     *
+     * @return a ClientConnection (or null if the channel hasn't completed its handshake)
+     */
+    static ClientConnection get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the slot that distinguishes this connection in metrics. Slots are reused once a connection closes.
+     *
+     * @return a slot number
+     */
+    int getSlot() {
+        return slot;
+    }
+
+    long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    long getFramesWritten() {
+        return framesWritten;
+    }
+
+    long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to the socket, both in this connection's queue and in the
+     * channel's outbound buffer. This can be called from any thread.
+     *
+     * @return the number of bytes
+     */
+    long getPendingOutboundBytes() {
+        ChannelOutboundBuffer buf = channel.unsafe().outboundBuffer();
+        return queuedBytes + (buf != null ? buf.totalPendingWriteBytes() : 0);
+    }
+
+    /**
+     * Records why the connection is being closed. Only the first reason recorded is kept.
+     *
+     * @param reason the reason
+     */
+    void setCloseReason(String reason) {
+        if (closeReason == null) {
+            closeReason = reason;
+        }
+    }
+
+    /**
+     * Sends a payload that isn't a sequenced event (e.g. a reply to a client request) to the client. This can be
+     * called from any thread and takes ownership of the payload.
+     *
+     * @param payload the encoded payload
+     * @param coalesceKey a key identifying the entity the payload describes (or null if it can't be coalesced)
+     */
+    void send(ByteBuf payload, String coalesceKey) {
+        send(payload, 0, coalesceKey);
+    }
+
+    /**
+     * Sends a payload to the client, compressing it if the client negotiated compression. This can be called from
+     * any thread and takes ownership of the payload.
+     *
+     * @param payload the encoded payload
+     * @param seq the sequence number of the event in the payload (or 0 if it has none)
+     * @param coalesceKey a key identifying the entity the payload describes (or null if it can't be coalesced)
+     */
+    void send(ByteBuf payload, long seq, String coalesceKey) {
+        send(payload, Encoding.RAW, null, seq, coalesceKey);
+    }
+
+    /**
+     * Sends a payload that has already been prepared for this connection (i.e. it is either compressed or should be
+     * sent as-is). This can be called from any thread and takes ownership of the payload.
+     *
+     * @param payload the payload
+     * @param compressed whether the payload is compressed
+     * @param internedIds the intern table IDs the uncompressed payload references (only needed for a compressed
+     *                    payload in a binary format; otherwise null to have them read from the payload)
+     * @param seq the sequence number of the event in the payload (or 0 if it has none)
+     * @param coalesceKey a key identifying the entity the payload describes (or null if it can't be coalesced)
+     */
+    void sendPrepared(ByteBuf payload, boolean compressed, int[] internedIds, long seq, String coalesceKey) {
+        send(payload, compressed ? Encoding.COMPRESSED : Encoding.PLAIN, internedIds, seq, coalesceKey);
+    }
+
+    private void send(final ByteBuf payload, final Encoding encoding, final int[] internedIds, final long seq, final String coalesceKey) {
+        if (channel.eventLoop().inEventLoop()) {
+            doSend(payload, encoding, internedIds, seq, coalesceKey);
+        } else {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    doSend(payload, encoding, internedIds, seq, coalesceKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the wire format for this connection. This must be called on the channel's event loop before anything is
+     * sent.
+     *
+     * @param format the format
+     * @param interns the intern table referenced by payloads in that format (or null if the format doesn't use one)
+     */
+    void setFormat(WireFormat format, InternTable interns) {
+        this.format = format;
+        this.interns = interns;
+    }
+
+    WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Enables compression for this connection.
+     *
+     * @param compressor the compressor
+     * @param maxSize the largest payload that may be sent compressed (as limited by the negotiated window size)
+     */
+    void setCompression(MessageCompressor compressor, int maxSize) {
+        this.maxCompressedSize = maxSize;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Indicates whether a shared, compressed copy of a payload should be sent to this connection.
+     *
+     * @param size the uncompressed payload size
+     *
+     * @return a boolean
+     */
+    boolean acceptsCompressed(int size) {
+        return compressor != null && !batching && size >= MessageCompressor.MIN_SIZE && size <= maxCompressedSize;
+    }
+
+    /**
+     * Records the compression of a payload sent to this connection.
+     *
+     * @param uncompressed the uncompressed size
+     * @param compressed the compressed size
+     * @param nanos the time spent compressing attributed to this connection
+     */
+    void recordCompression(long uncompressed, long compressed, long nanos) {
+        uncompressedBytes.addAndGet(uncompressed);
+        compressedBytes.addAndGet(compressed);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the ratio of compressed to uncompressed bytes for the payloads sent compressed to this connection.
+     *
+     * @return a ratio between 0 and 1 (or 1 if nothing has been compressed)
+     */
+    double getCompressionRatio() {
+        long u = uncompressedBytes.get();
+        return u > 0 ? (double)compressedBytes.get() / u : 1;
+    }
+
+    /**
+     * Returns the time spent compressing payloads for this connection. Time spent compressing shared payloads is
+     * divided evenly between the connections that received them.
+     *
+     * @return the time in nanoseconds
+     */
+    long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    /**
+     * Marks the events up to a sequence number as already delivered by a replay. Any of those events that are also
+     * sent live (because they were being dispatched while the client reconnected) are discarded. This must be
+     * called on the channel's event loop.
+     *
+     * @param seq the sequence number
+     */
+    void setResumeSequence(long seq) {
+        resumeSequence = seq;
+    }
+
+    /**
+     * Schedules a flush at the end of the current event loop tick so that all frames written during the tick share a
+     * single flush (and syscall).
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            channel.eventLoop().execute(flushTask);
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the channel will accept. Called when the channel becomes writable again.
+     */
+    void drain() {
+        boolean wrote = false;
+        while (!queue.isEmpty() && channel.isWritable()) {
+            Entry e = queue.poll();
+            if (e.coalesceKey != null) {
+                coalesceIndex.remove(e.coalesceKey);
+            }
+            queuedBytes -= e.payload.readableBytes();
+            writeFrame(e.payload, e.compressed, e.internedIds);
+            wrote = true;
+        }
+        if (wrote) {
+            flush();
+        }
+    }
+
+    /**
+     * Releases any queued frames. Called when the channel closes.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        metrics.disconnected(closeReason != null ? closeReason : CLOSED_LOST);
+        metrics.releaseSlot(slot);
+        releaseBatch();
+        for (Entry e : queue) {
+            e.payload.release();
+        }
+        queue.clear();
+        queuedBytes = 0;
+        coalesceIndex.clear();
+        if (framesDropped.get() > 0) {
+            logger.info("Connection {} closed; {} frames were dropped because the client could not keep up", channel.remoteAddress(), framesDropped.get());
+        }
+        if (uncompressedBytes.get() > 0) {
+            logger.debug("Connection {} closed; compression ratio {} using {} ms", channel.remoteAddress(), String.format("%.2f", getCompressionRatio()), TimeUnit.NANOSECONDS.toMillis(compressionNanos.get()));
+        }
+    }
+
+    /**
+     * Enables or disables batching for this connection. When enabled, payloads produced during one event loop tick
+     * (or within the given interval) are sent together as a single array frame.
+     *
+     * @param enabled whether batching is enabled
+     * @param intervalMillis the batch interval in milliseconds (0 for one event loop tick)
+     */
+    void setBatching(final boolean enabled, final long intervalMillis) {
+        if (channel.eventLoop().inEventLoop()) {
+            if (batching && !enabled) {
+                flushBatch();
+            }
+            batching = enabled;
+            batchIntervalMillis = Math.max(0, Math.min(MAX_BATCH_INTERVAL, intervalMillis));
+        } else {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    setBatching(enabled, intervalMillis);
+                }
+            });
+        }
+    }
+
+    boolean isBatching() {
+        return batching;
+    }
+
+    long getBatchIntervalMillis() {
+        return batchIntervalMillis;
+    }
+
+    private void doSend(ByteBuf payload, Encoding encoding, int[] internedIds, long seq, String coalesceKey) {
+        if (closed || !channel.isActive() || (seq > 0 && seq <= resumeSequence)) {
+            payload.release();
+            return;
+        }
+
+        if (interns != null && internedIds == null && encoding != Encoding.COMPRESSED) {
+            internedIds = CborWriter.getInternedIds(payload);
+        }
+
+        if (encoding == Encoding.COMPRESSED) {
+            // a compressed payload can't join a batch; send whatever is batched first to preserve ordering
+            if (!batch.isEmpty()) {
+                flushBatch();
+            }
+            enqueue(payload, true, internedIds, coalesceKey);
+        } else if (batching) {
+            batch.add(payload);
+            batchInternedIds.add(internedIds);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                flushBatch();
+            } else if (!batchScheduled) {
+                batchScheduled = true;
+                if (batchIntervalMillis > 0) {
+                    channel.eventLoop().schedule(batchTask, batchIntervalMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    channel.eventLoop().execute(batchTask);
+                }
+            }
+        } else if (encoding == Encoding.RAW) {
+            enqueueCompressed(payload, internedIds, coalesceKey);
+        } else {
+            enqueue(payload, false, internedIds, coalesceKey);
+        }
+    }
+
+    /**
+     * Compresses a payload if the connection negotiated compression and queues it.
+     */
+    private void enqueueCompressed(ByteBuf payload, int[] internedIds, String coalesceKey) {
+        MessageCompressor c = compressor;
+        int len = payload.readableBytes();
+        if (c != null && len >= MessageCompressor.MIN_SIZE && len <= maxCompressedSize) {
+            long start = System.nanoTime();
+            ByteBuf compressed = c.compress(payload, channel.alloc());
+            if (compressed != null) {
+                recordCompression(len, compressed.readableBytes(), System.nanoTime() - start);
+                payload.release();
+                enqueue(compressed, true, internedIds, coalesceKey);
+                return;
+            }
+        }
+        enqueue(payload, false, internedIds, coalesceKey);
+    }
+
+    /**
+     * Combines all batched payloads into a single array without copying them.
+     */
+    private void flushBatch() {
+        batchScheduled = false;
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (closed) {
+            releaseBatch();
+            return;
+        }
+        WireFormat f = format;
+        ByteBuf[] parts = new ByteBuf[batch.size() * 2 + 1];
+        int ix = 0;
+        for (ByteBuf b : batch) {
+            parts[ix] = ix == 0 ? f.getBatchStart() : f.getBatchSeparator();
+            parts[ix + 1] = b;
+            ix += 2;
+        }
+        parts[ix] = f.getBatchEnd();
+        int[] internedIds = null;
+        if (interns != null) {
+            int count = 0;
+            for (int[] ids : batchInternedIds) {
+                count += ids.length;
+            }
+            internedIds = new int[count];
+            count = 0;
+            for (int[] ids : batchInternedIds) {
+                System.arraycopy(ids, 0, internedIds, count, ids.length);
+                count += ids.length;
+            }
+        }
+        batch.clear();
+        batchInternedIds.clear();
+        enqueueCompressed(Unpooled.wrappedBuffer(parts.length, parts), internedIds, null);
+    }
+
+    private void releaseBatch() {
+        for (ByteBuf b : batch) {
+            b.release();
+        }
+        batch.clear();
+        batchInternedIds.clear();
+    }
+
+    private void enqueue(ByteBuf payload, boolean compressed, int[] internedIds, String coalesceKey) {
+        if (queue.isEmpty() && channel.isWritable()) {
+            writeFrame(payload, compressed, internedIds);
+            scheduleFlush();
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalesceKey != null) {
+            Entry e = coalesceIndex.get(coalesceKey);
+            if (e != null) {
+                queuedBytes += payload.readableBytes() - e.payload.readableBytes();
+                e.payload.release();
+                e.payload = payload;
+                e.compressed = compressed;
+                e.internedIds = internedIds;
+                framesDropped.incrementAndGet();
+                return;
+            }
+        }
+
+        if (queue.size() >= maxQueuedFrames) {
+            framesDropped.incrementAndGet();
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    payload.release();
+                    return;
+                case DISCONNECT:
+                    payload.release();
+                    logger.debug("Client {} is too slow; disconnecting", channel.remoteAddress());
+                    setCloseReason(CLOSED_TOO_SLOW);
+                    close();
+                    channel.writeAndFlush(new CloseWebSocketFrame(CLOSE_TOO_SLOW, "Client too slow")).addListener(ChannelFutureListener.CLOSE);
+                    // the close frame may sit behind a full write buffer; don't wait for it indefinitely
+                    channel.eventLoop().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            channel.close();
+                        }
+                    }, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    return;
+                default:
+                    Entry e = queue.poll();
+                    if (e.coalesceKey != null) {
+                        coalesceIndex.remove(e.coalesceKey);
+                    }
+                    queuedBytes -= e.payload.readableBytes();
+                    e.payload.release();
+            }
+        }
+
+        Entry e = new Entry(payload, compressed, internedIds, overflowPolicy == OverflowPolicy.COALESCE ? coalesceKey : null);
+        queue.add(e);
+        queuedBytes += payload.readableBytes();
+        if (e.coalesceKey != null) {
+            coalesceIndex.put(e.coalesceKey, e);
+        }
+    }
+
+    /**
+     * Writes a payload to the channel, preceded by a declaration of the intern table entries it references that
+     * haven't been declared to the client yet.
+     */
+    private void writeFrame(ByteBuf payload, boolean compressed, int[] internedIds) {
+        if (interns != null && internedIds != null) {
+            List<Integer> undeclared = null;
+            for (int id : internedIds) {
+                if (!declaredInterns.get(id)) {
+                    declaredInterns.set(id);
+                    if (undeclared == null) {
+                        undeclared = new ArrayList<>();
+                    }
+                    undeclared.add(id);
+                }
+            }
+            if (undeclared != null) {
+                write(newFrame(CborWriter.encodeDeclaration(interns, undeclared, channel.alloc()), false));
+            }
+        }
+        write(newFrame(payload, compressed));
+    }
+
+    private void write(WebSocketFrame frame) {
+        int bytes = frame.content().readableBytes();
+        bytesWritten += bytes;
+        framesWritten++;
+        metrics.frameWritten(bytes);
+        channel.write(frame).addListener(writeListener);
+    }
+
+    private void flush() {
+        flushes++;
+        metrics.flushed();
+        channel.flush();
+    }
+
+    private WebSocketFrame newFrame(ByteBuf payload, boolean compressed) {
+        int rsv = compressed ? MessageCompressor.RSV1 : 0;
+        return format.isBinary() ? new BinaryWebSocketFrame(true, rsv, payload) : new TextWebSocketFrame(true, rsv, payload);
+    }
+
+    /**
+     * How a payload handed to the connection is encoded.
+     */
+    private enum Encoding {
+        /**
+         * Uncompressed; the connection compresses it if it can.
+         */
+        RAW,
+        /**
+         * Uncompressed and sent as-is.
+         */
+        PLAIN,
+        /**
+         * Compressed.
+         */
+        COMPRESSED
+    }
+
+    private static class Entry {
+        ByteBuf payload;
+        boolean compressed;
+        int[] internedIds;
+        final String coalesceKey;
+
+        Entry(ByteBuf payload, boolean compressed, int[] internedIds, String coalesceKey) {
+            this.payload = payload;
+            this.compressed = compressed;
+            this.internedIds = internedIds;
+            this.coalesceKey = coalesceKey;
+        }
+    }
+}
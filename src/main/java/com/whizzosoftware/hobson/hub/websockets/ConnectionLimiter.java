@@ -0,0 +1,193 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for new connections. Limits the number of concurrent connections and the rate at which new
+ * connections are accepted, both globally and per remote address. Connections that exceed a limit are closed as
+ * soon as they become active, before any of their data is read. A limit of 0 disables that check.
+ *
+ * A single instance is shared by all channels.
+ *
+ * @author Dan Noguerol
+ */
+@ChannelHandler.Sharable
+class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionLimiter.class);
+
+    private static final AttributeKey<AddressState> ADMITTED_KEY = AttributeKey.valueOf("hobson.admittedAddress");
+    private static final InetAddress UNKNOWN_ADDRESS = InetAddress.getLoopbackAddress();
+    private static final int PRUNE_THRESHOLD = 1024;
+
+    private final WebSocketsConfig config;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final RateLimit connectRate = new RateLimit();
+    private final ConcurrentMap<InetAddress,AddressState> addresses = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    ConnectionLimiter(WebSocketsConfig config) {
+        this.config = config;
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        AddressState as = getAddressState(getAddress(ctx.channel().remoteAddress()));
+        String reason = admit(as);
+        if (reason == null) {
+            ctx.channel().attr(ADMITTED_KEY).set(as);
+            super.channelActive(ctx);
+        } else {
+            rejected.incrementAndGet();
+            logger.debug("Rejecting connection from {}: {}", ctx.channel().remoteAddress(), reason);
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        AddressState as = ctx.channel().attr(ADMITTED_KEY).getAndRemove();
+        if (as != null) {
+            connections.decrementAndGet();
+            as.connections.decrementAndGet();
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Attempts to admit a new connection.
+     *
+     * @param as the state of the remote address
+     *
+     * @return null if the connection was admitted or the reason it was rejected
+     */
+    private String admit(AddressState as) {
+        long now = System.nanoTime();
+
+        int rate = config.getMaxConnectRate();
+        if (rate > 0 && !connectRate.tryAcquire(rate, now)) {
+            return "connect rate exceeded";
+        }
+
+        int addressRate = config.getMaxConnectRatePerAddress();
+        if (addressRate > 0 && !as.connectRate.tryAcquire(addressRate, now)) {
+            return "connect rate exceeded for address";
+        }
+
+        int max = config.getMaxConnections();
+        if (connections.incrementAndGet() > max && max > 0) {
+            connections.decrementAndGet();
+            return "too many connections";
+        }
+
+        int addressMax = config.getMaxConnectionsPerAddress();
+        if (as.connections.incrementAndGet() > addressMax && addressMax > 0) {
+            as.connections.decrementAndGet();
+            connections.decrementAndGet();
+            return "too many connections from address";
+        }
+
+        return null;
+    }
+
+    private AddressState getAddressState(InetAddress address) {
+        AddressState as = addresses.get(address);
+        if (as == null) {
+            if (addresses.size() >= PRUNE_THRESHOLD) {
+                prune();
+            }
+            as = new AddressState();
+            AddressState prev = addresses.putIfAbsent(address, as);
+            if (prev != null) {
+                as = prev;
+            }
+        }
+        return as;
+    }
+
+    /**
+     * Removes the state of addresses that have no connections and whose rate limit has fully recovered, so that
+     * forgetting them can't let a client exceed its rate.
+     */
+    private void prune() {
+        long now = System.nanoTime();
+        Iterator<AddressState> it = addresses.values().iterator();
+        while (it.hasNext()) {
+            AddressState as = it.next();
+            if (as.connections.get() == 0 && as.connectRate.isIdle(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static InetAddress getAddress(SocketAddress sa) {
+        if (sa instanceof InetSocketAddress && ((InetSocketAddress)sa).getAddress() != null) {
+            return ((InetSocketAddress)sa).getAddress();
+        }
+        return UNKNOWN_ADDRESS;
+    }
+
+    private static class AddressState {
+        final AtomicInteger connections = new AtomicInteger();
+        final RateLimit connectRate = new RateLimit();
+    }
+
+    /**
+     * A token bucket that allows bursts of up to one second's worth of permits.
+     */
+    private static class RateLimit {
+        private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        private double tokens = -1;
+        private long lastNanos;
+
+        synchronized boolean tryAcquire(int perSecond, long now) {
+            if (tokens < 0) {
+                tokens = perSecond;
+            } else {
+                tokens = Math.min(perSecond, tokens + (double)(now - lastNanos) * perSecond / ONE_SECOND);
+            }
+            lastNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return tokens < 0 || now - lastNanos >= ONE_SECOND;
+        }
+    }
+}
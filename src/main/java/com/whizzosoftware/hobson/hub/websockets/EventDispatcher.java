@@ -0,0 +1,656 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.event.plugin.PluginStatusChangeEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskDeletedEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskExecutionEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskUpdatedEvent;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes events to the client channels whose subscriptions match them. Each distinct payload is encoded once per
+ * wire format in use and shared between all channels that receive it. Variable updates can optionally be conflated
+ * per variable over a time window, either globally or per subscription.
+ *
+ * Every event is assigned a sequence number and its full encoding is retained in a replay buffer so that clients
+ * can resume after reconnecting. Events are also applied to a state view that new clients receive as a snapshot.
+ *
+ * @author Dan Noguerol
+ */
+class EventDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(EventDispatcher.class);
+
+    static final long MIN_WINDOW = 50;
+
+    /**
+     * The conflation windows that can be used. Requested windows are rounded down to one of these so that only a
+     * handful of conflators can exist; all of them are flushed from a single timer that ticks every MIN_WINDOW.
+     */
+    static final long[] WINDOWS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final ChannelGroup clientChannels;
+    private final SubscriptionRegistry subscriptions;
+    private final EventEncoder encoder;
+    private final WebSocketsConfig config;
+    private final ReplayBuffer replay;
+    private final StateSnapshot state = new StateSnapshot();
+    private final ConcurrentMap<Long,VariableConflator> conflators = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+    private long ticks;
+
+    EventDispatcher(ChannelGroup clientChannels, SubscriptionRegistry subscriptions, EventEncoder encoder, WebSocketsConfig config) {
+        this.clientChannels = clientChannels;
+        this.subscriptions = subscriptions;
+        this.encoder = encoder;
+        this.config = config;
+        this.replay = new ReplayBuffer(config.getReplayBufferSize(), config.getReplayBufferAge() * 1000);
+    }
+
+    EventEncoder getEncoder() {
+        return encoder;
+    }
+
+    ReplayBuffer getReplayBuffer() {
+        return replay;
+    }
+
+    StateSnapshot getStateSnapshot() {
+        return state;
+    }
+
+    /**
+     * Sends an event to all interested client channels.
+     *
+     * @param event the event
+     * @param task the task associated with the event (if any)
+     */
+    void dispatch(final HobsonEvent event, final HobsonTask task) {
+        // the event is encoded without holding the replay buffer's lock, but the state update and replay buffer
+        // insertion happen in sequence number order so that a snapshot reflects exactly the events up to its sequence
+        // number and a resuming client can't miss an event that is being dispatched concurrently
+        final long seq = replay.nextSequence();
+        ByteBuf full = null;
+        try {
+            if (!clientChannels.isEmpty() || replay.isEnabled()) {
+                full = encoder.encode(event, task, seq, WireFormat.JSON);
+            }
+        } finally {
+            synchronized (replay) {
+                replay.awaitTurn(seq);
+                try {
+                    state.update(event, task);
+                } finally {
+                    replay.add(seq, event, task, WireFormat.JSON, full);
+                }
+            }
+        }
+
+        if (full == null) {
+            return;
+        }
+        if (clientChannels.isEmpty()) {
+            full.release();
+            return;
+        }
+
+        logger.trace("Dispatching event to client channels: {}", event);
+
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            dispatchVariableUpdate((DeviceVariablesUpdateEvent)event, seq, full);
+        } else {
+            List<Subscription> matches = new ArrayList<>();
+            String[] key = getRoutingKey(event);
+            subscriptions.match(event.getEventId(), key[0], key[1], key[2], null, matches);
+            // unfiltered channels are written to straight from the registry's set (read after the matches, as in
+            // groupByMask()); only the matched channels need de-duplicating
+            Collection<Channel> unfiltered = subscriptions.getUnfilteredChannels();
+            List<Channel> matched = Collections.emptyList();
+            if (!matches.isEmpty()) {
+                Set<Channel> seen = new HashSet<>();
+                matched = new ArrayList<>(matches.size());
+                for (Subscription s : matches) {
+                    Channel c = s.getChannel();
+                    if (!unfiltered.contains(c) && seen.add(c)) {
+                        matched.add(c);
+                    }
+                }
+            }
+            if (!matched.isEmpty() || !unfiltered.isEmpty()) {
+                write(unfiltered, matched, new Payloads(full) {
+                    @Override
+                    ByteBuf encode(WireFormat format) {
+                        return encoder.encode(event, task, seq, format);
+                    }
+                }, seq, getCoalesceKey(event.getEventId(), key[0], key[1], key[2], null));
+            } else {
+                full.release();
+            }
+        }
+    }
+
+    /**
+     * Routes each update in a variable update event individually. Channels interested in the same subset of updates
+     * share a single encoded payload. Updates for channels whose subscription requests conflation are handed to the
+     * conflator for that window instead.
+     *
+     * @param event the event
+     * @param seq the event's sequence number
+     * @param full the JSON encoding of the complete event (released by this method)
+     */
+    private void dispatchVariableUpdate(final DeviceVariablesUpdateEvent event, final long seq, ByteBuf full) {
+        List<DeviceVariableUpdate> updates = event.getUpdates();
+        // without a running timer nothing would flush a conflator so updates are sent directly
+        boolean conflating = scheduler != null;
+        long globalWindow = conflating ? normalizeWindow(config.getConflationWindow()) : 0;
+        Map<Channel,BitSet> masks = new HashMap<>();
+        Map<Long,BitSet> conflate = new HashMap<>();
+        Map<Channel,Long> windows = new HashMap<>();
+        List<Subscription> matches = new ArrayList<>();
+
+        for (int i = 0; i < updates.size(); i++) {
+            DeviceVariableUpdate u = updates.get(i);
+            matches.clear();
+            subscriptions.match(event.getEventId(), u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName(), matches);
+            getChannelWindows(matches, globalWindow, windows);
+            for (Map.Entry<Channel,Long> e : windows.entrySet()) {
+                if (e.getValue() == 0 || !conflating) {
+                    getMask(masks, e.getKey(), updates.size()).set(i);
+                } else {
+                    getMask(conflate, e.getValue(), updates.size()).set(i);
+                }
+            }
+        }
+
+        // unfiltered channels receive everything using the plugin's default window
+        Collection<Channel> unfiltered = subscriptions.getUnfilteredChannels();
+        if (globalWindow > 0 && !unfiltered.isEmpty()) {
+            getMask(conflate, globalWindow, updates.size()).set(0, updates.size());
+            unfiltered = Collections.emptyList();
+        }
+
+        for (Map.Entry<Long,BitSet> e : conflate.entrySet()) {
+            VariableConflator c = getConflator(e.getKey());
+            if (c == null) {
+                // the dispatcher was stopped while the event was being routed; pending updates are discarded anyway
+                continue;
+            }
+            BitSet mask = e.getValue();
+            for (int i = mask.nextSetBit(0); i > -1; i = mask.nextSetBit(i + 1)) {
+                DeviceVariableUpdate u = updates.get(i);
+                c.offer(event.getEventId(), u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName(), u.getOldValue(), u.getNewValue());
+            }
+        }
+
+        try {
+            if (masks.isEmpty() && unfiltered.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<BitSet,List<Channel>> e : groupByMask(masks, unfiltered, updates.size()).entrySet()) {
+                final BitSet mask = e.getKey();
+                write(e.getValue(), new Payloads(mask != null ? null : full.retain()) {
+                    @Override
+                    ByteBuf encode(WireFormat format) {
+                        return encoder.encodeSubset(event, mask, seq, format);
+                    }
+                }, seq, getCoalesceKey(event, mask));
+            }
+        } finally {
+            full.release();
+        }
+    }
+
+    /**
+     * Sends the updates accumulated by a conflator during its last window to the channels using that window. The
+     * conflated messages are given a sequence number of their own, taken when they're sent, so that the sequence
+     * numbers a client receives keep increasing. Conflated messages aren't retained for replay: the updates they
+     * contain were already retained individually under their original sequence numbers.
+     *
+     * @param c the conflator
+     */
+    void flushConflator(VariableConflator c) {
+        if (c.isEmpty()) {
+            return;
+        }
+
+        final List<VariableConflator.PendingUpdate> updates = c.drain();
+        if (updates.isEmpty() || clientChannels.isEmpty()) {
+            return;
+        }
+
+        long globalWindow = normalizeWindow(config.getConflationWindow());
+        Map<Channel,BitSet> masks = new HashMap<>();
+        Map<Channel,Long> windows = new HashMap<>();
+        List<Subscription> matches = new ArrayList<>();
+
+        for (int i = 0; i < updates.size(); i++) {
+            VariableConflator.PendingUpdate u = updates.get(i);
+            matches.clear();
+            subscriptions.match(u.eventId, u.key.hubId, u.key.pluginId, u.key.deviceId, u.key.name, matches);
+            getChannelWindows(matches, globalWindow, windows);
+            for (Map.Entry<Channel,Long> e : windows.entrySet()) {
+                if (e.getValue() == c.getWindowMillis()) {
+                    getMask(masks, e.getKey(), updates.size()).set(i);
+                }
+            }
+        }
+
+        Collection<Channel> unfiltered = globalWindow == c.getWindowMillis() ? subscriptions.getUnfilteredChannels() : Collections.<Channel>emptyList();
+        if (masks.isEmpty() && unfiltered.isEmpty()) {
+            return;
+        }
+
+        final long seq = replay.nextSequence();
+        synchronized (replay) {
+            replay.awaitTurn(seq);
+            replay.add(seq, null, null, WireFormat.JSON, null);
+        }
+
+        for (Map.Entry<BitSet,List<Channel>> e : groupByMask(masks, unfiltered, updates.size()).entrySet()) {
+            String coalesceKey = null;
+            if (config.getOverflowPolicy() == OverflowPolicy.COALESCE) {
+                int ix = e.getKey() != null ? (e.getKey().cardinality() == 1 ? e.getKey().nextSetBit(0) : -1) : (updates.size() == 1 ? 0 : -1);
+                if (ix > -1) {
+                    VariableConflator.Key k = updates.get(ix).key;
+                    coalesceKey = getCoalesceKey(updates.get(ix).eventId, k.hubId, k.pluginId, k.deviceId, k.name);
+                }
+            }
+            final BitSet mask = e.getKey();
+            write(e.getValue(), new Payloads(null) {
+                @Override
+                ByteBuf encode(WireFormat format) {
+                    return encoder.encodeConflated(updates, mask, seq, format);
+                }
+            }, seq, coalesceKey);
+        }
+    }
+
+    /**
+     * Starts the timer that flushes conflated variable updates.
+     */
+    synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("hobson-websockets-conflator", true));
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tick();
+                    } catch (Throwable t) {
+                        logger.error("Error flushing conflated variable updates", t);
+                    }
+                }
+            }, MIN_WINDOW, MIN_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by the timer every MIN_WINDOW. Flushes each conflator whose window has elapsed and removes the ones that
+     * are no longer used by any subscription or by the plugin's default window.
+     */
+    void tick() {
+        ticks++;
+        long globalWindow = normalizeWindow(config.getConflationWindow());
+        for (Map.Entry<Long,VariableConflator> e : conflators.entrySet()) {
+            long window = e.getKey();
+            VariableConflator c = e.getValue();
+            if (ticks % (window / MIN_WINDOW) == 0) {
+                flushConflator(c);
+            }
+            if (c.isEmpty() && window != globalWindow && !subscriptions.isWindowInUse(window) && conflators.remove(window, c)) {
+                // an update routed just before the last subscription went away may have arrived since
+                flushConflator(c);
+            }
+        }
+    }
+
+    /**
+     * Stops the conflation timer, discards any pending conflated updates and empties the replay buffer and state
+     * view.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        conflators.clear();
+        replay.clear();
+        state.clear();
+    }
+
+    /**
+     * Applies configuration changes that affect the dispatcher.
+     */
+    void configurationUpdated() {
+        replay.setLimits(config.getReplayBufferSize(), config.getReplayBufferAge() * 1000);
+    }
+
+    /**
+     * Returns the conflator for a window, creating it if necessary.
+     *
+     * @param window the window in milliseconds
+     *
+     * @return a VariableConflator (or null if the dispatcher isn't running)
+     */
+    private VariableConflator getConflator(long window) {
+        VariableConflator c = conflators.get(window);
+        if (c == null) {
+            synchronized (this) {
+                c = conflators.get(window);
+                if (c == null && scheduler != null) {
+                    c = new VariableConflator(window);
+                    conflators.put(window, c);
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Determines the conflation window that applies to each channel for a set of matching subscriptions. When
+     * several of a channel's subscriptions match, the shortest window wins.
+     */
+    private void getChannelWindows(List<Subscription> matches, long globalWindow, Map<Channel,Long> windows) {
+        windows.clear();
+        for (Subscription s : matches) {
+            long w = s.getConflateWindow() != null ? normalizeWindow(s.getConflateWindow()) : globalWindow;
+            Long cur = windows.get(s.getChannel());
+            if (cur == null || w < cur) {
+                windows.put(s.getChannel(), w);
+            }
+        }
+    }
+
+    /**
+     * Rounds a conflation window down to the nearest of the supported WINDOWS (and up to MIN_WINDOW) so that
+     * updates are never held for longer than requested.
+     *
+     * @param window the requested window in milliseconds
+     *
+     * @return the effective window (0 for no conflation)
+     */
+    static long normalizeWindow(long window) {
+        if (window <= 0) {
+            return 0;
+        }
+        long w = WINDOWS[0];
+        for (long s : WINDOWS) {
+            if (s <= window) {
+                w = s;
+            }
+        }
+        return w;
+    }
+
+    private static <K> BitSet getMask(Map<K,BitSet> masks, K key, int size) {
+        BitSet mask = masks.get(key);
+        if (mask == null) {
+            mask = new BitSet(size);
+            masks.put(key, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Groups channels by the set of updates they're interested in. A null key denotes all updates. A channel that
+     * subscribes while an event is being routed can appear both as unfiltered and in the masks; it is left out of
+     * the masked groups so that it receives the event at most once.
+     */
+    private static Map<BitSet,List<Channel>> groupByMask(Map<Channel,BitSet> masks, Collection<Channel> unfiltered, int size) {
+        Map<BitSet,List<Channel>> groups = new HashMap<>();
+        if (!masks.isEmpty()) {
+            BitSet all = new BitSet(size);
+            all.set(0, size);
+            for (Map.Entry<Channel,BitSet> e : masks.entrySet()) {
+                // the unfiltered collection is the registry's own set, so this is a constant time lookup
+                if (unfiltered.contains(e.getKey())) {
+                    continue;
+                }
+                BitSet key = e.getValue().equals(all) ? null : e.getValue();
+                List<Channel> l = groups.get(key);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    groups.put(key, l);
+                }
+                l.add(e.getKey());
+            }
+        }
+        // read after the masks so that a channel that stopped being unfiltered in between isn't added twice
+        if (!unfiltered.isEmpty()) {
+            List<Channel> l = groups.get(null);
+            if (l == null) {
+                l = new ArrayList<>(unfiltered.size());
+                groups.put(null, l);
+            }
+            l.addAll(unfiltered);
+        }
+        return groups;
+    }
+
+    /**
+     * Writes a payload to a set of channels. Each channel receives a retained duplicate of the payload in its wire
+     * format so the underlying memory is shared; the payloads are released once all writes have been issued.
+     * Channels that negotiated compression share a single compressed copy per format.
+     *
+     * @param channels the target channels
+     * @param payloads the payload in each format
+     * @param seq the sequence number of the payload
+     * @param coalesceKey the key identifying the entity the payload describes (or null)
+     */
+    void write(Collection<Channel> channels, Payloads payloads, long seq, String coalesceKey) {
+        write(channels, Collections.<Channel>emptyList(), payloads, seq, coalesceKey);
+    }
+
+    /**
+     * Writes a payload to two disjoint sets of channels.
+     */
+    private void write(Collection<Channel> channels, Collection<Channel> moreChannels, Payloads payloads, long seq, String coalesceKey) {
+        try {
+            Map<WireFormat,List<ClientConnection>> compressing = null;
+            for (Channel c : channels) {
+                compressing = prepare(c, payloads, seq, coalesceKey, compressing);
+            }
+            for (Channel c : moreChannels) {
+                compressing = prepare(c, payloads, seq, coalesceKey, compressing);
+            }
+            if (compressing != null) {
+                for (Map.Entry<WireFormat,List<ClientConnection>> e : compressing.entrySet()) {
+                    writeCompressed(e.getValue(), payloads.get(e.getKey()), payloads.getInternedIds(e.getKey()), seq, coalesceKey);
+                }
+            }
+        } finally {
+            payloads.release();
+        }
+    }
+
+    /**
+     * Writes a payload to a channel, or sets the channel aside if it should receive the shared compressed copy.
+     *
+     * @return the connections waiting for a compressed copy by wire format (or null if there are none yet)
+     */
+    private Map<WireFormat,List<ClientConnection>> prepare(Channel c, Payloads payloads, long seq, String coalesceKey, Map<WireFormat,List<ClientConnection>> compressing) {
+        ClientConnection conn = ClientConnection.get(c);
+        if (conn != null) {
+            ByteBuf payload = payloads.get(conn.getFormat());
+            if (conn.acceptsCompressed(payload.readableBytes())) {
+                if (compressing == null) {
+                    compressing = new EnumMap<>(WireFormat.class);
+                }
+                List<ClientConnection> l = compressing.get(conn.getFormat());
+                if (l == null) {
+                    l = new ArrayList<>();
+                    compressing.put(conn.getFormat(), l);
+                }
+                l.add(conn);
+            } else {
+                conn.sendPrepared(payload.duplicate().retain(), false, payloads.getInternedIds(conn.getFormat()), seq, coalesceKey);
+            }
+        }
+        return compressing;
+    }
+
+    /**
+     * Compresses a payload once and writes it to a set of connections.
+     */
+    private void writeCompressed(List<ClientConnection> conns, ByteBuf payload, int[] internedIds, long seq, String coalesceKey) {
+        int level = config.getCompressionLevel();
+        long start = System.nanoTime();
+        ByteBuf compressed = level > 0 ? MessageCompressor.forLevel(level).compress(payload, payload.alloc()) : null;
+        if (compressed != null) {
+            try {
+                long nanos = (System.nanoTime() - start) / conns.size();
+                for (ClientConnection conn : conns) {
+                    conn.recordCompression(payload.readableBytes(), compressed.readableBytes(), nanos);
+                    conn.sendPrepared(compressed.duplicate().retain(), true, internedIds, seq, coalesceKey);
+                }
+            } finally {
+                compressed.release();
+            }
+        } else {
+            for (ClientConnection conn : conns) {
+                conn.sendPrepared(payload.duplicate().retain(), false, internedIds, seq, coalesceKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the coalescing key for a (possibly partial) variable update event. Only events that carry exactly
+     * one update can be coalesced.
+     */
+    private String getCoalesceKey(DeviceVariablesUpdateEvent event, BitSet mask) {
+        if (config.getOverflowPolicy() == OverflowPolicy.COALESCE) {
+            List<DeviceVariableUpdate> updates = event.getUpdates();
+            int ix = mask != null ? (mask.cardinality() == 1 ? mask.nextSetBit(0) : -1) : (updates.size() == 1 ? 0 : -1);
+            if (ix > -1) {
+                DeviceVariableUpdate u = updates.get(ix);
+                return getCoalesceKey(event.getEventId(), u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName());
+            }
+        }
+        return null;
+    }
+
+    private String getCoalesceKey(String eventId, String hubId, String pluginId, String deviceId, String variable) {
+        if (config.getOverflowPolicy() == OverflowPolicy.COALESCE) {
+            return eventId + "|" + hubId + "|" + pluginId + "|" + deviceId + "|" + variable;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the hub, plugin and device IDs an event pertains to (any of which may be null).
+     *
+     * @param event the event
+     *
+     * @return a 3-element String array
+     */
+    static String[] getRoutingKey(HobsonEvent event) {
+        if (event instanceof DeviceEvent) {
+            DeviceContext ctx = ((DeviceEvent)event).getDeviceContext();
+            return new String[] {ctx.getHubId(), ctx.getPluginId(), ctx.getDeviceId()};
+        } else if (event instanceof PluginStatusChangeEvent) {
+            PluginStatusChangeEvent e = (PluginStatusChangeEvent)event;
+            return new String[] {e.getContext().getHubId(), e.getContext().getPluginId(), null};
+        } else if (event instanceof PresenceUpdateNotificationEvent) {
+            return new String[] {((PresenceUpdateNotificationEvent)event).getEntityContext().getHubId(), null, null};
+        } else if (event instanceof TaskExecutionEvent) {
+            return new String[] {((TaskExecutionEvent)event).getContext().getHubId(), null, null};
+        } else if (event instanceof TaskUpdatedEvent) {
+            return new String[] {((TaskUpdatedEvent)event).getTask().getHubId(), null, null};
+        } else if (event instanceof TaskDeletedEvent) {
+            return new String[] {((TaskDeletedEvent)event).getTask().getHubId(), null, null};
+        } else {
+            return new String[] {null, null, null};
+        }
+    }
+
+    /**
+     * A payload that is encoded lazily, at most once per wire format.
+     */
+    abstract static class Payloads {
+        private final ByteBuf[] payloads = new ByteBuf[WireFormat.values().length];
+        private final int[][] internedIds = new int[WireFormat.values().length][];
+
+        /**
+         * Constructor.
+         *
+         * @param json the payload already encoded as JSON (or null); ownership passes to this object
+         */
+        Payloads(ByteBuf json) {
+            payloads[WireFormat.JSON.ordinal()] = json;
+        }
+
+        ByteBuf get(WireFormat format) {
+            ByteBuf b = payloads[format.ordinal()];
+            if (b == null) {
+                b = encode(format);
+                payloads[format.ordinal()] = b;
+            }
+            return b;
+        }
+
+        /**
+         * Returns the intern table IDs the payload references in a binary format, which are only read from the
+         * payload once however many connections it is sent to.
+         *
+         * @param format the wire format
+         *
+         * @return an array of IDs (or null for a format that doesn't intern strings)
+         */
+        int[] getInternedIds(WireFormat format) {
+            if (!format.isBinary()) {
+                return null;
+            }
+            int[] ids = internedIds[format.ordinal()];
+            if (ids == null) {
+                ids = CborWriter.getInternedIds(get(format));
+                internedIds[format.ordinal()] = ids;
+            }
+            return ids;
+        }
+
+        void release() {
+            for (ByteBuf b : payloads) {
+                if (b != null) {
+                    b.release();
+                }
+            }
+        }
+
+        abstract ByteBuf encode(WireFormat format);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.event.hub.HubConfigurationUpdateEvent;
+import com.whizzosoftware.hobson.api.event.plugin.PluginStatusChangeEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskDeletedEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskExecutionEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskUpdatedEvent;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes Hobson events directly into (pooled, direct) ByteBufs in any of the supported wire formats. The resulting
+ * buffer is intended to be encoded once per format and shared across all client channels. Events carry the sequence
+ * number assigned by the dispatcher so that clients can resume after reconnecting.
+ *
+ * @author Dan Noguerol
+ */
+class EventEncoder {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ByteBufAllocator alloc;
+    private final Metrics metrics;
+    private final UriCache uris = new UriCache();
+    private final InternTable interns = new InternTable();
+
+    EventEncoder(ByteBufAllocator alloc) {
+        this(alloc, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param alloc the allocator for encoded payloads
+     * @param metrics the metrics to record event encoding times in (or null)
+     */
+    EventEncoder(ByteBufAllocator alloc, Metrics metrics) {
+        this.alloc = alloc;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the intern table shared by all payloads encoded in a binary format.
+     *
+     * @return an InternTable
+     */
+    InternTable getInterns() {
+        return interns;
+    }
+
+    /**
+     * Encodes an event. The caller owns the returned buffer and is responsible for releasing it.
+     *
+     * @param event the event to encode
+     * @param task the task associated with the event (only used for task execution and update events)
+     * @param seq the event's sequence number (or 0 for none)
+     * @param format the wire format
+     *
+     * @return a ByteBuf containing the encoded event
+     */
+    ByteBuf encode(HobsonEvent event, HobsonTask task, long seq, WireFormat format) {
+        return encode(event, task, null, seq, format);
+    }
+
+    /**
+     * Encodes a variable update event that only includes a subset of its updates.
+     *
+     * @param event the event to encode
+     * @param include the indices of the updates to include (or null for all)
+     * @param seq the event's sequence number (or 0 for none)
+     * @param format the wire format
+     *
+     * @return a ByteBuf containing the encoded event
+     */
+    ByteBuf encodeSubset(DeviceVariablesUpdateEvent event, BitSet include, long seq, WireFormat format) {
+        return encode(event, null, include, seq, format);
+    }
+
+    /**
+     * Encodes the variable updates accumulated during a conflation window as a single variable update event.
+     *
+     * @param updates the conflated updates
+     * @param include the indices of the updates to include (or null for all)
+     * @param seq the sequence number of the most recent included update (or 0 for none)
+     * @param format the wire format
+     *
+     * @return a ByteBuf containing the encoded event
+     */
+    ByteBuf encodeConflated(List<VariableConflator.PendingUpdate> updates, BitSet include, long seq, WireFormat format) {
+        long start = System.nanoTime();
+        ByteBuf buf = alloc.directBuffer(INITIAL_CAPACITY);
+        try {
+            EventWriter w = newWriter(buf, format);
+            w.beginObject();
+            w.idField("id", updates.get(0).eventId);
+            writeSeq(w, seq);
+            w.field("timestamp", System.currentTimeMillis());
+            w.name("properties").beginObject();
+            w.name("updates").beginArray();
+            for (int i = 0; i < updates.size(); i++) {
+                if (include == null || include.get(i)) {
+                    VariableConflator.PendingUpdate u = updates.get(i);
+                    writeVariable(w, u.key.hubId, u.key.pluginId, u.key.deviceId, u.key.name, u.oldValue, u.newValue);
+                }
+            }
+            w.endArray();
+            w.endObject();
+            w.endObject();
+            recordEncode(format, start);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the current state view as a "snapshot" message. Entries are written in a compact form: variables and
+     * devices are identified only by their URI.
+     *
+     * @param snapshot the state view
+     * @param filter the subscriptions an entry must match to be included (or null to include all entries)
+     * @param seq the sequence number of the last event reflected in the view
+     * @param format the wire format
+     *
+     * @return a ByteBuf containing the encoded message
+     */
+    ByteBuf encodeSnapshot(StateSnapshot snapshot, Collection<Subscription> filter, long seq, WireFormat format) {
+        ByteBuf buf = alloc.directBuffer(INITIAL_CAPACITY * 16);
+        try {
+            EventWriter w = newWriter(buf, format);
+            w.beginObject();
+            w.field("id", "snapshot");
+            writeSeq(w, seq);
+            w.field("timestamp", System.currentTimeMillis());
+            w.name("properties").beginObject();
+
+            w.name("variables").beginArray();
+            for (StateSnapshot.VariableState v : snapshot.getVariables()) {
+                VariableConflator.Key k = v.key;
+                if (matches(filter, v.eventId, k.hubId, k.pluginId, k.deviceId, k.name)) {
+                    w.beginObject();
+                    w.name("id").deviceUri(k.hubId, k.pluginId, k.deviceId, k.name);
+                    w.field("value", v.value);
+                    w.endObject();
+                }
+            }
+            w.endArray();
+
+            w.name("devices").beginArray();
+            for (StateSnapshot.DeviceState d : snapshot.getDevices()) {
+                if (matches(filter, d.eventId, d.hubId, d.pluginId, d.deviceId, null)) {
+                    w.beginObject();
+                    w.name("id").deviceUri(d.hubId, d.pluginId, d.deviceId, null);
+                    w.field("available", d.available);
+                    w.endObject();
+                }
+            }
+            w.endArray();
+
+            w.name("plugins").beginArray();
+            for (StateSnapshot.PluginState p : snapshot.getPlugins()) {
+                if (matches(filter, p.eventId, p.hubId, p.pluginId, null, null)) {
+                    w.beginObject();
+                    w.name("id").pluginUri(p.hubId, p.pluginId);
+                    w.name("status").beginObject();
+                    w.field("code", p.code);
+                    w.field("message", p.message);
+                    w.endObject();
+                    w.endObject();
+                }
+            }
+            w.endArray();
+
+            w.name("presence").beginArray();
+            for (StateSnapshot.PresenceState p : snapshot.getPresence()) {
+                if (matches(filter, p.eventId, p.hubId, null, null, null)) {
+                    w.beginObject();
+                    w.idField("hubId", p.hubId);
+                    w.idField("entityId", p.entityId);
+                    w.field("location", p.location);
+                    w.endObject();
+                }
+            }
+            w.endArray();
+
+            w.name("tasks").beginArray();
+            for (StateSnapshot.TaskState t : snapshot.getTasks()) {
+                if (matches(filter, t.eventId, t.context.getHubId(), null, null, null)) {
+                    w.beginObject();
+                    writeTaskId(w, t.context);
+                    w.field("name", t.name);
+                    w.field("description", t.description);
+                    w.field("enabled", t.enabled);
+                    w.endObject();
+                }
+            }
+            w.endArray();
+
+            w.endObject();
+            w.endObject();
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Tests an event's routing attributes against a set of subscriptions.
+     *
+     * @param filter the subscriptions (or null to match everything)
+     * @param eventId the event ID
+     * @param hubId the hub ID (or null if the event has none)
+     * @param pluginId the plugin ID (or null if the event has none)
+     * @param deviceId the device ID (or null if the event has none)
+     * @param variable the variable name (or null if the event has none)
+     *
+     * @return true if any of the subscriptions match
+     */
+    static boolean matches(Collection<Subscription> filter, String eventId, String hubId, String pluginId, String deviceId, String variable) {
+        if (filter == null) {
+            return true;
+        }
+        for (Subscription s : filter) {
+            if (s.matches(eventId, hubId, pluginId, deviceId, variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes a control message (i.e. a message that originates from this plugin rather than the Hobson event bus).
+     *
+     * @param id the message ID
+     * @param properties the message properties
+     * @param format the wire format
+     *
+     * @return a ByteBuf containing the encoded message
+     */
+    ByteBuf encodeMessage(String id, Map<String,Object> properties, WireFormat format) {
+        ByteBuf buf = alloc.directBuffer(INITIAL_CAPACITY);
+        try {
+            EventWriter w = newWriter(buf, format);
+            w.beginObject();
+            w.idField("id", id);
+            w.field("timestamp", System.currentTimeMillis());
+            w.field("properties", properties);
+            w.endObject();
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    private ByteBuf encode(HobsonEvent event, HobsonTask task, BitSet include, long seq, WireFormat format) {
+        long start = System.nanoTime();
+        ByteBuf buf = alloc.directBuffer(INITIAL_CAPACITY);
+        try {
+            EventWriter w = newWriter(buf, format);
+            w.beginObject();
+            w.idField("id", event.getEventId());
+            writeSeq(w, seq);
+            w.field("timestamp", event.getTimestamp());
+            if (event instanceof DeviceVariablesUpdateEvent) {
+                writeVariableUpdate(w, (DeviceVariablesUpdateEvent)event, include);
+            } else if (event instanceof DeviceEvent) {
+                writeDevice(w, (DeviceEvent)event);
+            } else if (event instanceof PluginStatusChangeEvent) {
+                writePluginStatusChange(w, (PluginStatusChangeEvent)event);
+            } else if (event instanceof PresenceUpdateNotificationEvent) {
+                writePresenceUpdate(w, (PresenceUpdateNotificationEvent)event);
+            } else if (event instanceof TaskExecutionEvent) {
+                writeTaskExecution(w, (TaskExecutionEvent)event, task);
+            } else if (event instanceof TaskUpdatedEvent) {
+                writeTaskUpdated(w, (TaskUpdatedEvent)event, task);
+            } else if (event instanceof TaskDeletedEvent) {
+                writeTaskDeleted(w, (TaskDeletedEvent)event);
+            } else if (event instanceof HubConfigurationUpdateEvent) {
+                writeHubConfiguration(w, (HubConfigurationUpdateEvent)event);
+            } else {
+                throw new IllegalArgumentException("Unsupported event: " + event);
+            }
+            w.endObject();
+            recordEncode(format, start);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    private void recordEncode(WireFormat format, long start) {
+        if (metrics != null) {
+            metrics.recordEncode(format, System.nanoTime() - start);
+        }
+    }
+
+    private EventWriter newWriter(ByteBuf buf, WireFormat format) {
+        return format == WireFormat.CBOR ? new CborWriter(buf, interns) : new JsonWriter(buf, uris);
+    }
+
+    private void writeSeq(EventWriter w, long seq) {
+        if (seq > 0) {
+            w.field("seq", seq);
+        }
+    }
+
+    private void writeVariableUpdate(EventWriter w, DeviceVariablesUpdateEvent event, BitSet include) {
+        w.name("properties").beginObject();
+        w.name("updates").beginArray();
+        List<DeviceVariableUpdate> updates = event.getUpdates();
+        for (int i = 0; i < updates.size(); i++) {
+            if (include != null && !include.get(i)) {
+                continue;
+            }
+            DeviceVariableUpdate u = updates.get(i);
+            writeVariable(w, u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName(), u.getOldValue(), u.getNewValue());
+        }
+        w.endArray();
+        w.endObject();
+    }
+
+    private void writeVariable(EventWriter w, String hubId, String pluginId, String deviceId, String name, Object oldValue, Object newValue) {
+        w.beginObject();
+        w.name("id").deviceUri(hubId, pluginId, deviceId, name);
+        w.idField("name", name);
+        w.field("oldValue", oldValue);
+        w.field("newValue", newValue);
+        w.idField("hubId", hubId);
+        w.idField("pluginId", pluginId);
+        w.idField("deviceId", deviceId);
+        w.endObject();
+    }
+
+    private void writePresenceUpdate(EventWriter w, PresenceUpdateNotificationEvent event) {
+        w.name("properties").beginObject();
+        w.idField("hubId", event.getEntityContext().getHubId());
+        w.idField("entityId", event.getEntityContext().getEntityId());
+        w.field("oldLocation", event.getOldLocation());
+        w.field("newLocation", event.getNewLocation());
+        w.endObject();
+    }
+
+    private void writeTaskExecution(EventWriter w, TaskExecutionEvent event, HobsonTask task) {
+        TaskContext ctx = event.getContext();
+        w.name("properties").beginObject();
+        writeTaskId(w, ctx);
+        if (task != null) {
+            w.field("name", task.getName());
+        }
+        w.endObject();
+    }
+
+    private void writeHubConfiguration(EventWriter w, HubConfigurationUpdateEvent event) {
+        w.name("configuration").beginObject();
+        Map<String,Object> p = event.getConfiguration();
+        for (String key : p.keySet()) {
+            w.field(key, p.get(key));
+        }
+        w.endObject();
+    }
+
+    private void writeDevice(EventWriter w, DeviceEvent event) {
+        DeviceContext ctx = event.getDeviceContext();
+        w.name("properties").beginObject();
+        w.name("id").deviceUri(ctx.getHubId(), ctx.getPluginId(), ctx.getDeviceId(), null);
+        w.endObject();
+    }
+
+    private void writePluginStatusChange(EventWriter w, PluginStatusChangeEvent event) {
+        w.name("properties").beginObject();
+        w.name("id").pluginUri(event.getContext().getHubId(), event.getContext().getPluginId());
+        w.idField("pluginId", event.getContext().getPluginId());
+        w.name("status").beginObject();
+        w.field("code", event.getStatus().getCode());
+        w.field("message", event.getStatus().getMessage());
+        w.endObject();
+        w.endObject();
+    }
+
+    private void writeTaskUpdated(EventWriter w, TaskUpdatedEvent event, HobsonTask task) {
+        w.name("properties").beginObject();
+        writeTaskId(w, event.getTask());
+        if (task != null) {
+            w.field("name", task.getName());
+            w.field("description", task.getDescription());
+            w.field("enabled", task.isEnabled());
+            if (task.hasProperties()) {
+                w.name("taskProperties").beginObject();
+                Map<String,Object> p = task.getProperties();
+                for (String key : p.keySet()) {
+                    w.field(key, p.get(key));
+                }
+                w.endObject();
+            }
+        }
+        w.endObject();
+    }
+
+    private void writeTaskDeleted(EventWriter w, TaskDeletedEvent event) {
+        w.name("properties").beginObject();
+        writeTaskId(w, event.getTask());
+        w.endObject();
+    }
+
+    private void writeTaskId(EventWriter w, TaskContext ctx) {
+        w.name("id").taskUri(ctx.getHubId(), ctx.getTaskId());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+/**
+ * A streaming writer for the event model that is independent of the wire format. Null field values are omitted
+ * from objects.
+ *
+ * @author Dan Noguerol
+ */
+interface EventWriter {
+    EventWriter beginObject();
+
+    EventWriter endObject();
+
+    EventWriter beginArray();
+
+    EventWriter endArray();
+
+    /**
+     * Writes an object member name. The next value written becomes its value.
+     *
+     * @param name the member name
+     *
+     * @return this writer
+     */
+    EventWriter name(String name);
+
+    EventWriter field(String name, Object value);
+
+    EventWriter field(String name, long value);
+
+    EventWriter field(String name, boolean value);
+
+    /**
+     * Writes a name/value pair whose value is an identifier that is likely to recur across events (e.g. an event,
+     * hub, plugin or device ID). Formats that support it may write a reference to an interned copy instead.
+     *
+     * @param name the member name
+     * @param value the identifier
+     *
+     * @return this writer
+     */
+    EventWriter idField(String name, String value);
+
+    EventWriter value(Object value);
+
+    /**
+     * Writes the REST API URI of a device or one of its variables.
+     *
+     * @param hubId the hub ID
+     * @param pluginId the plugin ID
+     * @param deviceId the device ID
+     * @param variable the variable name (or null for the device itself)
+     *
+     * @return this writer
+     */
+    EventWriter deviceUri(String hubId, String pluginId, String deviceId, String variable);
+
+    EventWriter pluginUri(String hubId, String pluginId);
+
+    EventWriter taskUri(String hubId, String taskId);
+}
@@ -0,0 +1,97 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Channel handler that inspects the head of each HTTP request before it is aggregated and rejects anything that
+ * can't be a valid WebSocket handshake: requests that aren't a GET for the WebSocket path, that carry a body or that
+ * have no access token. Rejected requests receive an error response and the connection is closed without buffering
+ * any of the request body.
+ *
+ * @author Dan Noguerol
+ */
+class HandshakeGuard extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(HandshakeGuard.class);
+
+    private final String path;
+    private boolean discarding;
+
+    HandshakeGuard(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest)msg;
+            HttpResponseStatus status = check(req);
+            if (status != null) {
+                logger.debug("Rejecting request from {} with {}: {} {}", ctx.channel().remoteAddress(), status, req.getMethod(), req.getUri());
+                discarding = true;
+                ReferenceCountUtil.release(msg);
+                reject(ctx, status);
+                return;
+            }
+            discarding = false;
+        } else if (discarding && msg instanceof HttpContent) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Checks whether a request could be a valid WebSocket handshake.
+     *
+     * @param req the request head
+     *
+     * @return the status to reject the request with or null if it is acceptable
+     */
+    private HttpResponseStatus check(HttpRequest req) {
+        if (!req.getDecoderResult().isSuccess()) {
+            return HttpResponseStatus.BAD_REQUEST;
+        }
+        if (!path.equals(new QueryStringDecoder(req.getUri()).path())) {
+            return HttpResponseStatus.NOT_FOUND;
+        }
+        if (!HttpMethod.GET.equals(req.getMethod())) {
+            return HttpResponseStatus.METHOD_NOT_ALLOWED;
+        }
+        if (HttpHeaders.getContentLength(req, 0) > 0 || HttpHeaders.isTransferEncodingChunked(req)) {
+            return HttpResponseStatus.BAD_REQUEST;
+        }
+        if (Authorizer.getToken(req) == null) {
+            return HttpResponseStatus.UNAUTHORIZED;
+        }
+        return null;
+    }
+
+    static void reject(ChannelHandlerContext ctx, HttpResponseStatus status) {
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpHeaders.setContentLength(response, 0);
+        response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects and closes connections whose client has gone away without closing them, such as a tablet that went to
+ * sleep or lost its network. Without this, a half-open connection stays in the client channel group indefinitely and
+ * events keep being encoded and queued for it.
+ *
+ * Anything received from the client counts as a sign of life. A WebSocket client that has been silent for the ping
+ * interval is sent a ping and its connection is closed if nothing (normally the pong) arrives within the pong
+ * timeout. Independently, a connection is closed if it has sent nothing for the read idle timeout, or if it has
+ * been unwritable (its pending writes exceed the high water mark) for the write idle timeout. A connection that has
+ * not completed a WebSocket handshake can't be pinged, so it is closed after being silent for the ping interval plus
+ * the pong timeout.
+ *
+ * This handler sits at the front of the pipeline so it sees all inbound data, including the pongs that the WebSocket
+ * protocol handler discards. Timeouts are read from the configuration when a connection is accepted.
+ *
+ * @author Dan Noguerol
+ */
+class HeartbeatHandler extends ChannelDuplexHandler {
+    private static final Logger logger = LoggerFactory.getLogger(HeartbeatHandler.class);
+
+    static final String REAPED_NO_PONG = "pong";
+    static final String REAPED_READ_IDLE = "read";
+    static final String REAPED_WRITE_IDLE = "write";
+    static final String REAPED_HANDSHAKE = "handshake";
+
+    private final Metrics metrics;
+    private final long pingIntervalNanos;
+    private final long pongTimeoutNanos;
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final long handshakeIdleNanos;
+    private long lastRead;
+    private long pingSent;
+    private long unwritableSince;
+    private ScheduledFuture<?> check;
+    private long checkAt;
+    private boolean started;
+
+    HeartbeatHandler(WebSocketsConfig config, Metrics metrics) {
+        this.metrics = metrics;
+        this.pingIntervalNanos = TimeUnit.SECONDS.toNanos(config.getPingInterval());
+        this.pongTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getPongTimeout());
+        this.readIdleNanos = TimeUnit.SECONDS.toNanos(config.getReadIdleTimeout());
+        this.writeIdleNanos = TimeUnit.SECONDS.toNanos(config.getWriteIdleTimeout());
+        this.handshakeIdleNanos = pingIntervalNanos > 0 ? pingIntervalNanos + pongTimeoutNanos : readIdleNanos;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+            start(ctx);
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        start(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stop();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        stop();
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastRead = System.nanoTime();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            unwritableSince = 0;
+        } else if (unwritableSince == 0) {
+            unwritableSince = System.nanoTime();
+            if (writeIdleNanos > 0) {
+                scheduleCheck(ctx, unwritableSince + writeIdleNanos);
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void start(ChannelHandlerContext ctx) {
+        if (started) {
+            return;
+        }
+        started = true;
+        lastRead = System.nanoTime();
+        check(ctx);
+    }
+
+    private void stop() {
+        started = false;
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    /**
+     * Closes the connection if any of its deadlines have passed, sends a ping if one is due and schedules the next
+     * check for the earliest remaining deadline.
+     */
+    private void check(ChannelHandlerContext ctx) {
+        if (!started || !ctx.channel().isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        ClientConnection conn = ClientConnection.get(ctx.channel());
+
+        if (pingSent != 0 && lastRead - pingSent >= 0) {
+            pingSent = 0;
+        }
+
+        if (conn == null) {
+            if (handshakeIdleNanos > 0) {
+                if (now - lastRead >= handshakeIdleNanos) {
+                    reap(ctx, null, REAPED_HANDSHAKE);
+                    return;
+                }
+                next = lastRead + handshakeIdleNanos;
+            }
+            if (pingIntervalNanos > 0) {
+                // the handshake may complete before then, in which case the client is pinged on time
+                next = earliest(next, lastRead + pingIntervalNanos);
+            }
+        } else {
+            if (pingSent != 0) {
+                if (now - pingSent >= pongTimeoutNanos) {
+                    reap(ctx, conn, REAPED_NO_PONG);
+                    return;
+                }
+                next = pingSent + pongTimeoutNanos;
+            } else if (pingIntervalNanos > 0) {
+                if (now - lastRead >= pingIntervalNanos) {
+                    pingSent = now;
+                    metrics.pingSent();
+                    ctx.channel().writeAndFlush(new PingWebSocketFrame()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+                    next = now + pongTimeoutNanos;
+                } else {
+                    next = lastRead + pingIntervalNanos;
+                }
+            }
+            if (readIdleNanos > 0) {
+                if (now - lastRead >= readIdleNanos) {
+                    reap(ctx, conn, REAPED_READ_IDLE);
+                    return;
+                }
+                next = earliest(next, lastRead + readIdleNanos);
+            }
+        }
+
+        if (writeIdleNanos > 0 && unwritableSince != 0) {
+            if (now - unwritableSince >= writeIdleNanos) {
+                reap(ctx, conn, REAPED_WRITE_IDLE);
+                return;
+            }
+            next = earliest(next, unwritableSince + writeIdleNanos);
+        }
+
+        if (next != Long.MAX_VALUE) {
+            scheduleCheck(ctx, next);
+        }
+    }
+
+    /**
+     * Schedules a check for a time unless one is already scheduled for that time or earlier.
+     */
+    private void scheduleCheck(final ChannelHandlerContext ctx, long at) {
+        if (check != null) {
+            if (at - checkAt >= 0) {
+                return;
+            }
+            check.cancel(false);
+        }
+        checkAt = at;
+        check = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                check = null;
+                check(ctx);
+            }
+        }, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void reap(ChannelHandlerContext ctx, ClientConnection conn, String cause) {
+        logger.debug("Closing unresponsive connection from {} ({})", ctx.channel().remoteAddress(), cause);
+        if (conn != null) {
+            conn.setCloseReason(ClientConnection.CLOSED_IDLE);
+        }
+        metrics.connectionReaped(cause);
+        ctx.close();
+    }
+
+    private static long earliest(long a, long b) {
+        return a == Long.MAX_VALUE || b - a < 0 ? b : a;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with fixed bucket bounds. Recording a value is a bucket search and two atomic
+ * increments, so it is cheap enough for the dispatch path.
+ *
+ * @author Dan Noguerol
+ */
+class Histogram {
+    /**
+     * Bucket bounds suited to work measured in microseconds (e.g. encoding a payload).
+     */
+    static final long[] FAST_BOUNDS = {
+        1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 10000000
+    };
+    /**
+     * Bucket bounds suited to work measured in milliseconds (e.g. a handshake).
+     */
+    static final long[] SLOW_BOUNDS = {
+        100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 25000000, 50000000, 100000000, 250000000,
+        500000000, 1000000000, 2500000000L, 5000000000L
+    };
+    /**
+     * Bucket bounds suited to latencies that are usually microseconds but can grow to seconds (e.g. time spent in a
+     * queue).
+     */
+    static final long[] WIDE_BOUNDS = {
+        10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 10000000, 25000000, 100000000, 250000000,
+        1000000000, 5000000000L
+    };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param bounds the inclusive upper bound of each bucket in nanoseconds, in ascending order (an overflow bucket
+     *               is added for larger values)
+     */
+    Histogram(long[] bounds) {
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(long nanos) {
+        int lo = 0;
+        int hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (nanos <= bounds[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        counts.incrementAndGet(lo);
+        sum.addAndGet(nanos);
+    }
+
+    int getBucketCount() {
+        return bounds.length;
+    }
+
+    long getBound(int bucket) {
+        return bounds[bucket];
+    }
+
+    /**
+     * Returns the number of values recorded in a bucket.
+     *
+     * @param bucket the bucket index (getBucketCount() for the overflow bucket)
+     *
+     * @return the count
+     */
+    long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    long getSumNanos() {
+        return sum.get();
+    }
+}
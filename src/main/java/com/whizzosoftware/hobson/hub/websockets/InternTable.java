@@ -0,0 +1,89 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns small integer IDs to recurring strings (field names, identifiers and URIs) for binary wire formats.
+ * IDs are never reused, so a connection only needs to remember which IDs it has declared to know which entries a
+ * payload still needs declared before it. The table is shared by all connections so that encoded payloads can be
+ * shared as well, but each connection is only told about the entries used by the payloads it is actually sent.
+ *
+ * @author Dan Noguerol
+ */
+class InternTable {
+    /**
+     * Upper bound on the number of entries; strings seen after the table is full are written inline.
+     */
+    static final int MAX_ENTRIES = 10000;
+
+    private final ConcurrentMap<String,Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private volatile int size;
+
+    /**
+     * Returns the ID of a string, assigning one if necessary.
+     *
+     * @param s the string
+     *
+     * @return the ID or -1 if the table is full
+     */
+    int getId(String s) {
+        Integer id = ids.get(s);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(s);
+            if (id != null) {
+                return id;
+            }
+            if (size >= MAX_ENTRIES) {
+                return -1;
+            }
+            // the entry must be counted before its ID is published, since a payload referencing the ID can be
+            // encoded as soon as another thread sees it
+            int newId = size;
+            strings.add(s);
+            size = newId + 1;
+            ids.put(s, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Returns the number of entries. Every ID referenced by a payload that has already been encoded is less than
+     * this.
+     *
+     * @return an int
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a set of entries.
+     *
+     * @param ids the IDs of the entries
+     *
+     * @return a list of strings in the same order as the IDs
+     */
+    synchronized List<String> getStrings(List<Integer> ids) {
+        List<String> results = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            results.add(strings.get(id));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A minimal streaming JSON writer that encodes UTF-8 directly into a ByteBuf. No intermediate String or
+ * object tree is created. Value semantics mirror those of org.json (null values are omitted from objects, maps,
+ * collections, arrays and org.json values are written as nested JSON, unknown objects are written as their quoted
+ * toString() value).
+ *
+ * @author Dan Noguerol
+ */
+class JsonWriter implements EventWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] VARIABLES = escape("/variables/");
+    private static final byte[] TASKS = escape("/tasks/");
+
+    private final ByteBuf buf;
+    private final UriCache uris;
+    private long needsComma;
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter(ByteBuf buf) {
+        this(buf, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param buf the buffer to write to
+     * @param uris the cache of escaped URI prefixes (required to write URIs)
+     */
+    JsonWriter(ByteBuf buf, UriCache uris) {
+        this.buf = buf;
+        this.uris = uris;
+    }
+
+    ByteBuf buffer() {
+        return buf;
+    }
+
+    public JsonWriter beginObject() {
+        separator();
+        buf.writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        pop();
+        buf.writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separator();
+        buf.writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        pop();
+        buf.writeByte(']');
+        return this;
+    }
+
+    /**
+     * Writes an object member name. The next value written becomes its value.
+     *
+     * @param name the member name
+     *
+     * @return this writer
+     */
+    public JsonWriter name(String name) {
+        separator();
+        writeQuoted(name);
+        buf.writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a name/value pair. Null values are skipped entirely, as org.json does.
+     *
+     * @param name the member name
+     * @param value the value
+     *
+     * @return this writer
+     */
+    public JsonWriter field(String name, Object value) {
+        if (value != null) {
+            name(name);
+            value(value);
+        }
+        return this;
+    }
+
+    public JsonWriter field(String name, long value) {
+        name(name);
+        value(value);
+        return this;
+    }
+
+    public JsonWriter field(String name, boolean value) {
+        name(name);
+        value(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter idField(String name, String value) {
+        return field(name, value);
+    }
+
+    @Override
+    public JsonWriter deviceUri(String hubId, String pluginId, String deviceId, String variable) {
+        beginString().rawStringPart(uris.getDevicePrefix(hubId, pluginId, deviceId));
+        if (variable != null) {
+            rawStringPart(VARIABLES).stringPart(variable);
+        }
+        return endString();
+    }
+
+    @Override
+    public JsonWriter pluginUri(String hubId, String pluginId) {
+        return beginString().rawStringPart(uris.getPluginPrefix(hubId, pluginId)).endString();
+    }
+
+    @Override
+    public JsonWriter taskUri(String hubId, String taskId) {
+        return beginString().rawStringPart(uris.getHubPrefix(hubId)).rawStringPart(TASKS).stringPart(taskId).endString();
+    }
+
+    JsonWriter value(long value) {
+        separator();
+        writeLong(value);
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        separator();
+        buf.writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        separator();
+        if (value == null) {
+            buf.writeBytes(NULL);
+        } else {
+            writeQuoted(value);
+        }
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JsonWriter value(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            separator();
+            buf.writeBytes(NULL);
+        } else if (value instanceof String) {
+            value((String)value);
+        } else if (value instanceof Boolean) {
+            value(((Boolean)value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            value(((Number)value).longValue());
+        } else if (value instanceof Number) {
+            separator();
+            writeNumber((Number)value);
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<Object,Object> e : ((Map<Object,Object>)value).entrySet()) {
+                field(String.valueOf(e.getKey()), e.getValue());
+            }
+            endObject();
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object o : (Collection<Object>)value) {
+                value(o);
+            }
+            endArray();
+        } else if (value.getClass().isArray()) {
+            beginArray();
+            int len = Array.getLength(value);
+            for (int i = 0; i < len; i++) {
+                value(Array.get(value, i));
+            }
+            endArray();
+        } else if (value instanceof JSONObject) {
+            JSONObject o = (JSONObject)value;
+            beginObject();
+            for (Iterator<?> it = o.keys(); it.hasNext(); ) {
+                String key = String.valueOf(it.next());
+                field(key, o.opt(key));
+            }
+            endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray a = (JSONArray)value;
+            beginArray();
+            for (int i = 0; i < a.length(); i++) {
+                value(a.opt(i));
+            }
+            endArray();
+        } else if (value instanceof JSONString && ((JSONString)value).toJSONString() != null) {
+            separator();
+            buf.writeBytes(((JSONString)value).toJSONString().getBytes(CharsetUtil.UTF_8));
+        } else {
+            value(value.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Begins a string value whose content will be supplied in parts via stringPart() and rawStringPart().
+     *
+     * @return this writer
+     */
+    JsonWriter beginString() {
+        separator();
+        buf.writeByte('"');
+        return this;
+    }
+
+    JsonWriter stringPart(String s) {
+        writeEscaped(String.valueOf(s));
+        return this;
+    }
+
+    /**
+     * Appends pre-escaped UTF-8 string content (e.g. a cached URI prefix).
+     *
+     * @param escaped the escaped bytes
+     *
+     * @return this writer
+     */
+    JsonWriter rawStringPart(byte[] escaped) {
+        buf.writeBytes(escaped);
+        return this;
+    }
+
+    JsonWriter endString() {
+        buf.writeByte('"');
+        return this;
+    }
+
+    /**
+     * Escapes a string for inclusion in a JSON string literal and returns its UTF-8 bytes.
+     *
+     * @param s the string
+     *
+     * @return the escaped UTF-8 bytes (without surrounding quotes)
+     */
+    static byte[] escape(String s) {
+        ByteBuf tmp = Unpooled.buffer(s.length() + 8);
+        try {
+            new JsonWriter(tmp).writeEscaped(s);
+            byte[] b = new byte[tmp.readableBytes()];
+            tmp.readBytes(b);
+            return b;
+        } finally {
+            tmp.release();
+        }
+    }
+
+    private void separator() {
+        if (afterName) {
+            // a member value is never preceded by a comma
+            afterName = false;
+            return;
+        }
+        long bit = 1L << depth;
+        if ((needsComma & bit) != 0) {
+            buf.writeByte(',');
+        } else {
+            needsComma |= bit;
+        }
+    }
+
+    private void push() {
+        if (++depth >= MAX_DEPTH) {
+            throw new IllegalStateException("Maximum JSON nesting depth exceeded");
+        }
+        needsComma &= ~(1L << depth);
+    }
+
+    private void pop() {
+        depth--;
+    }
+
+    private void writeQuoted(String s) {
+        buf.writeByte('"');
+        writeEscaped(s);
+        buf.writeByte('"');
+    }
+
+    private void writeEscaped(String s) {
+        int len = s.length();
+        buf.ensureWritable(len + 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.writeByte('\\');
+                buf.writeByte(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\b':
+                        buf.writeByte('\\').writeByte('b');
+                        break;
+                    case '\t':
+                        buf.writeByte('\\').writeByte('t');
+                        break;
+                    case '\n':
+                        buf.writeByte('\\').writeByte('n');
+                        break;
+                    case '\f':
+                        buf.writeByte('\\').writeByte('f');
+                        break;
+                    case '\r':
+                        buf.writeByte('\\').writeByte('r');
+                        break;
+                    default:
+                        writeUnicodeEscape(c);
+                }
+            } else if (c < 0x80) {
+                buf.writeByte(c);
+            } else if (c < 0x800) {
+                buf.writeByte(0xc0 | (c >> 6));
+                buf.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.writeByte(0xf0 | (cp >> 18));
+                buf.writeByte(0x80 | ((cp >> 12) & 0x3f));
+                buf.writeByte(0x80 | ((cp >> 6) & 0x3f));
+                buf.writeByte(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate; not representable in UTF-8
+                writeUnicodeEscape(c);
+            } else {
+                buf.writeByte(0xe0 | (c >> 12));
+                buf.writeByte(0x80 | ((c >> 6) & 0x3f));
+                buf.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buf.writeByte('\\').writeByte('u');
+        buf.writeByte(HEX[(c >> 12) & 0xf]);
+        buf.writeByte(HEX[(c >> 8) & 0xf]);
+        buf.writeByte(HEX[(c >> 4) & 0xf]);
+        buf.writeByte(HEX[c & 0xf]);
+    }
+
+    private void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            buf.writeBytes(MIN_LONG);
+            return;
+        }
+        if (v < 0) {
+            buf.writeByte('-');
+            v = -v;
+        }
+        if (v < 10) {
+            buf.writeByte((int)('0' + v));
+            return;
+        }
+        int digits = 0;
+        for (long t = v; t > 0; t /= 10) {
+            digits++;
+        }
+        buf.ensureWritable(digits);
+        int end = buf.writerIndex() + digits;
+        for (int i = end - 1; v > 0; i--) {
+            buf.setByte(i, (int)('0' + (v % 10)));
+            v /= 10;
+        }
+        buf.writerIndex(end);
+    }
+
+    private void writeNumber(Number n) {
+        if ((n instanceof Double && (((Double)n).isNaN() || ((Double)n).isInfinite())) ||
+            (n instanceof Float && (((Float)n).isNaN() || ((Float)n).isInfinite()))) {
+            buf.writeBytes(NULL);
+            return;
+        }
+        // same trailing zero trimming performed by JSONObject.numberToString()
+        String s = n.toString();
+        int end = s.length();
+        if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            while (s.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (s.charAt(end - 1) == '.') {
+                end--;
+            }
+        }
+        for (int i = 0; i < end; i++) {
+            buf.writeByte(s.charAt(i));
+        }
+    }
+}
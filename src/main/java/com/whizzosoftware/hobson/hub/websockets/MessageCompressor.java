@@ -0,0 +1,172 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses WebSocket message payloads as defined by the permessage-deflate extension (RFC 7692).
+ *
+ * Messages are always compressed without context takeover, so a compressed payload doesn't depend on any previous
+ * message on the connection and can be shared by every client that negotiated the extension. Deflaters are kept per
+ * thread since compression happens on both the dispatch threads and the event loops.
+ *
+ * @author Dan Noguerol
+ */
+class MessageCompressor {
+    /**
+     * The RSV1 bit, which marks a compressed message.
+     */
+    static final int RSV1 = 0x04;
+
+    /**
+     * Payloads smaller than this aren't worth compressing.
+     */
+    static final int MIN_SIZE = 64;
+
+    private static final byte[] TAIL = new byte[] {0x00, 0x00, (byte)0xff, (byte)0xff};
+    private static final int CHUNK_SIZE = 8192;
+    private static final MessageCompressor[] INSTANCES = new MessageCompressor[10];
+
+    static {
+        for (int i = 0; i < INSTANCES.length; i++) {
+            INSTANCES[i] = new MessageCompressor(i);
+        }
+    }
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+    };
+    private final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private MessageCompressor(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the shared compressor for a compression level.
+     *
+     * @param level the level (1-9)
+     *
+     * @return a MessageCompressor
+     */
+    static MessageCompressor forLevel(int level) {
+        return INSTANCES[Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level))];
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Compresses a payload. The payload's reader index is not changed.
+     *
+     * @param payload the payload
+     * @param alloc the allocator for the compressed buffer
+     *
+     * @return the compressed payload or null if compression wouldn't make it smaller
+     */
+    ByteBuf compress(ByteBuf payload, ByteBufAllocator alloc) {
+        int len = payload.readableBytes();
+        if (len < MIN_SIZE) {
+            return null;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(toArray(payload), payload.hasArray() ? payload.arrayOffset() + payload.readerIndex() : 0, len);
+
+        byte[] chunk = chunks.get();
+        ByteBuf out = alloc.directBuffer(Math.max(MIN_SIZE, len / 2));
+        try {
+            int n;
+            do {
+                n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                out.writeBytes(chunk, 0, n);
+            } while (n == chunk.length);
+
+            // a sync flush always ends with an empty stored block, which the extension requires to be removed
+            if (out.readableBytes() >= TAIL.length) {
+                out.writerIndex(out.writerIndex() - TAIL.length);
+            }
+
+            if (out.readableBytes() >= len) {
+                out.release();
+                return null;
+            }
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decompresses a message received from a client.
+     *
+     * @param inflater the connection's inflater
+     * @param payload the compressed payload
+     * @param maxSize the maximum size of the decompressed message
+     * @param alloc the allocator for the decompressed buffer
+     *
+     * @return the decompressed payload
+     *
+     * @throws DataFormatException if the payload is invalid or decompresses to more than maxSize bytes
+     */
+    static ByteBuf decompress(Inflater inflater, ByteBuf payload, int maxSize, ByteBufAllocator alloc) throws DataFormatException {
+        int len = payload.readableBytes();
+        byte[] in = new byte[len + TAIL.length];
+        payload.getBytes(payload.readerIndex(), in, 0, len);
+        System.arraycopy(TAIL, 0, in, len, TAIL.length);
+        inflater.setInput(in);
+
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, maxSize + 1)];
+        ByteBuf out = alloc.heapBuffer(Math.min(maxSize, len * 4));
+        try {
+            int n;
+            while ((n = inflater.inflate(chunk)) > 0) {
+                if (out.readableBytes() + n > maxSize) {
+                    throw new DataFormatException("Message exceeds " + maxSize + " bytes");
+                }
+                out.writeBytes(chunk, 0, n);
+            }
+            if (inflater.needsDictionary()) {
+                throw new DataFormatException("Preset dictionaries are not supported");
+            }
+            return out;
+        } catch (DataFormatException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private byte[] toArray(ByteBuf payload) {
+        if (payload.hasArray()) {
+            return payload.array();
+        }
+        byte[] b = new byte[payload.readableBytes()];
+        payload.getBytes(payload.readerIndex(), b);
+        return b;
+    }
+}
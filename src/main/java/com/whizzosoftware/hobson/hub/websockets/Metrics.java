@@ -0,0 +1,236 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The plugin's operational metrics. Components on the hot path record into the counters and histograms held here;
+ * components that already keep their own statistics contribute them through a Collector when the metrics are
+ * written. Per-connection figures are read from each connected client's ClientConnection.
+ *
+ * @author Dan Noguerol
+ */
+class Metrics {
+    static final String PREFIX = "hobson_websockets_";
+
+    private final ChannelGroup clientChannels;
+    private final ConcurrentMap<String,AtomicLong> eventsReceived = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,AtomicLong> disconnects = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,AtomicLong> reaped = new ConcurrentHashMap<>();
+    private final Histogram[] encodeLatency = new Histogram[WireFormat.values().length];
+    private final Histogram handshakeLatency = new Histogram(Histogram.SLOW_BOUNDS);
+    private final Histogram authLatency = new Histogram(Histogram.SLOW_BOUNDS);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong pingsSent = new AtomicLong();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    private final BitSet slots = new BitSet();
+
+    Metrics(ChannelGroup clientChannels) {
+        this.clientChannels = clientChannels;
+        for (int i = 0; i < encodeLatency.length; i++) {
+            encodeLatency[i] = new Histogram(Histogram.FAST_BOUNDS);
+        }
+    }
+
+    /**
+     * Adds a source of metrics that are computed when the metrics are written.
+     *
+     * @param c the collector
+     */
+    void addCollector(Collector c) {
+        collectors.add(c);
+    }
+
+    /**
+     * Assigns a connection the lowest slot not in use. Per-connection series are labelled with the slot, so they are
+     * reused as clients come and go and their number is bounded by the number of concurrent connections.
+     *
+     * @return a slot number
+     */
+    synchronized int acquireSlot() {
+        int slot = slots.nextClearBit(0);
+        slots.set(slot);
+        return slot;
+    }
+
+    synchronized void releaseSlot(int slot) {
+        slots.clear(slot);
+    }
+
+    void eventReceived(String eventId) {
+        increment(eventsReceived, eventId);
+    }
+
+    void recordEncode(WireFormat format, long nanos) {
+        encodeLatency[format.ordinal()].record(nanos);
+    }
+
+    void recordHandshake(long nanos) {
+        handshakeLatency.record(nanos);
+    }
+
+    void recordAuthorization(long nanos) {
+        authLatency.record(nanos);
+    }
+
+    void frameWritten(int bytes) {
+        framesWritten.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+    }
+
+    void flushed() {
+        flushes.incrementAndGet();
+    }
+
+    void writeFailed() {
+        writeFailures.incrementAndGet();
+    }
+
+    void disconnected(String reason) {
+        increment(disconnects, reason);
+    }
+
+    void pingSent() {
+        pingsSent.incrementAndGet();
+    }
+
+    void connectionReaped(String reason) {
+        increment(reaped, reason);
+    }
+
+    /**
+     * Writes all metrics.
+     *
+     * @param w the writer
+     */
+    void write(MetricsWriter w) {
+        writeCounters(w, PREFIX + "events_received_total", "Events received from the hub by event type", "event", eventsReceived);
+
+        String name = PREFIX + "encode_duration_seconds";
+        w.family(name, "histogram", "Time spent encoding an event payload by wire format");
+        for (WireFormat f : WireFormat.values()) {
+            w.histogram(name, encodeLatency[f.ordinal()], "format", f.name().toLowerCase());
+        }
+
+        name = PREFIX + "handshake_duration_seconds";
+        w.family(name, "histogram", "Time from receiving a handshake request to completing the handshake").histogram(name, handshakeLatency);
+        name = PREFIX + "authorization_duration_seconds";
+        w.family(name, "histogram", "Time spent authenticating and authorizing a handshake's access token").histogram(name, authLatency);
+
+        w.counter(PREFIX + "bytes_written_total", "Payload bytes written to client channels", bytesWritten.get());
+        w.counter(PREFIX + "frames_written_total", "Frames written to client channels", framesWritten.get());
+        w.counter(PREFIX + "flushes_total", "Client channel flushes", flushes.get());
+        w.counter(PREFIX + "write_failures_total", "Frames whose write to a client channel failed", writeFailures.get());
+        writeCounters(w, PREFIX + "disconnects_total", "Client disconnects by reason", "reason", disconnects);
+        w.counter(PREFIX + "pings_sent_total", "Heartbeat pings sent to idle clients", pingsSent.get());
+        writeCounters(w, PREFIX + "reaped_connections_total", "Unresponsive connections closed by the server by cause", "cause", reaped);
+
+        writeConnections(w);
+
+        for (Collector c : collectors) {
+            c.collect(w);
+        }
+    }
+
+    /**
+     * Writes the per-connection metrics. Connections are identified by their slot and wire format.
+     */
+    private void writeConnections(MetricsWriter w) {
+        List<ClientConnection> conns = new ArrayList<>();
+        for (Channel c : clientChannels) {
+            ClientConnection conn = ClientConnection.get(c);
+            if (conn != null) {
+                conns.add(conn);
+            }
+        }
+
+        w.gauge(PREFIX + "connections", "Connected WebSocket clients", conns.size());
+
+        String name = PREFIX + "connection_bytes_written_total";
+        w.family(name, "counter", "Payload bytes written to a client channel");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getBytesWritten(), getLabels(conn));
+        }
+        name = PREFIX + "connection_frames_written_total";
+        w.family(name, "counter", "Frames written to a client channel");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getFramesWritten(), getLabels(conn));
+        }
+        name = PREFIX + "connection_compression_ratio";
+        w.family(name, "gauge", "Ratio of compressed to uncompressed bytes of the payloads sent compressed to a client channel");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getCompressionRatio(), getLabels(conn));
+        }
+        name = PREFIX + "connection_compression_seconds_total";
+        w.family(name, "counter", "Time spent compressing payloads for a client channel");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getCompressionNanos() / 1e9, getLabels(conn));
+        }
+        name = PREFIX + "connection_flushes_total";
+        w.family(name, "counter", "Flushes of a client channel");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getFlushes(), getLabels(conn));
+        }
+        name = PREFIX + "connection_frames_dropped_total";
+        w.family(name, "counter", "Frames dropped or coalesced because a client could not keep up");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getFramesDropped(), getLabels(conn));
+        }
+        name = PREFIX + "connection_pending_outbound_bytes";
+        w.family(name, "gauge", "Bytes queued for a client channel but not yet written to its socket");
+        for (ClientConnection conn : conns) {
+            w.sample(name, conn.getPendingOutboundBytes(), getLabels(conn));
+        }
+    }
+
+    private static String[] getLabels(ClientConnection conn) {
+        return new String[] {"slot", Integer.toString(conn.getSlot()), "format", conn.getFormat().name().toLowerCase()};
+    }
+
+    private static void writeCounters(MetricsWriter w, String name, String help, String label, Map<String,AtomicLong> counters) {
+        w.family(name, "counter", help);
+        for (Map.Entry<String,AtomicLong> e : counters.entrySet()) {
+            w.sample(name, e.getValue().get(), label, e.getKey());
+        }
+    }
+
+    private static void increment(ConcurrentMap<String,AtomicLong> counters, String key) {
+        AtomicLong l = counters.get(key);
+        if (l == null) {
+            l = new AtomicLong();
+            AtomicLong prev = counters.putIfAbsent(key, l);
+            if (prev != null) {
+                l = prev;
+            }
+        }
+        l.incrementAndGet();
+    }
+
+    /**
+     * Contributes metrics kept elsewhere.
+     */
+    interface Collector {
+        void collect(MetricsWriter w);
+    }
+}
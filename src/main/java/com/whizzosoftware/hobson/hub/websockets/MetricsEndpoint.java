@@ -0,0 +1,124 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.security.AccessManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the plugin's metrics in the Prometheus text format at a fixed path, on the same port as the WebSocket
+ * endpoint. It sits in front of the handshake guard, which only accepts WebSocket handshakes; all other requests pass
+ * through. Metrics requests require the same access token as a handshake. When metrics are disabled, the path isn't
+ * handled here and is rejected like any other unknown path.
+ *
+ * Since this is the first handler to see each request, it also records when a handshake request arrived so that the
+ * handshake's duration can be measured.
+ *
+ * @author Dan Noguerol
+ */
+class MetricsEndpoint extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    static final AttributeKey<Long> HANDSHAKE_START_KEY = AttributeKey.valueOf("hobson.handshakeStart");
+
+    private final String path;
+    private final Metrics metrics;
+    private final WebSocketsConfig config;
+    private final AccessManager accessManager;
+    private final TokenCache tokenCache;
+    private boolean handling;
+
+    MetricsEndpoint(String path, Metrics metrics, WebSocketsConfig config, AccessManager accessManager, TokenCache tokenCache) {
+        this.path = path;
+        this.metrics = metrics;
+        this.config = config;
+        this.accessManager = accessManager;
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest)msg;
+            handling = config.isMetricsEnabled() && req.getDecoderResult().isSuccess() && path.equals(new QueryStringDecoder(req.getUri()).path());
+            if (handling) {
+                // the request is answered once it has been fully received
+                respond(ctx, req);
+            } else {
+                ctx.channel().attr(HANDSHAKE_START_KEY).set(System.nanoTime());
+            }
+        }
+        if (handling) {
+            if (msg instanceof LastHttpContent) {
+                handling = false;
+            }
+            ReferenceCountUtil.release(msg);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private void respond(ChannelHandlerContext ctx, HttpRequest req) {
+        if (!HttpMethod.GET.equals(req.getMethod())) {
+            HandshakeGuard.reject(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            return;
+        }
+        if (!isAuthorized(req)) {
+            HandshakeGuard.reject(ctx, HttpResponseStatus.UNAUTHORIZED);
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(8192);
+        metrics.write(new MetricsWriter(sb));
+        ByteBuf content = ctx.alloc().buffer(sb.length());
+        content.writeBytes(sb.toString().getBytes(CharsetUtil.UTF_8));
+
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, MetricsWriter.CONTENT_TYPE);
+        HttpHeaders.setContentLength(response, content.readableBytes());
+        if (HttpHeaders.isKeepAlive(req)) {
+            ctx.writeAndFlush(response);
+        } else {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private boolean isAuthorized(HttpRequest req) {
+        String token = Authorizer.getToken(req);
+        if (token == null) {
+            logger.debug("No token found for metrics request");
+            return false;
+        }
+        try {
+            return Authorizer.authorize(accessManager, tokenCache, token) != null;
+        } catch (Exception e) {
+            logger.debug("Metrics request token not authorized", e);
+            return false;
+        }
+    }
+}
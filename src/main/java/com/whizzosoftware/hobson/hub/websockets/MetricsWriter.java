@@ -0,0 +1,145 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4). Each metric family is introduced with
+ * family() followed by its samples. Labels are passed as alternating names and values.
+ *
+ * @author Dan Noguerol
+ */
+class MetricsWriter {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final StringBuilder sb;
+
+    MetricsWriter(StringBuilder sb) {
+        this.sb = sb;
+    }
+
+    /**
+     * Starts a metric family.
+     *
+     * @param name the metric name
+     * @param type the metric type ("counter", "gauge" or "histogram")
+     * @param help a description of the metric
+     *
+     * @return this writer
+     */
+    MetricsWriter family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    MetricsWriter sample(String name, long value, String... labels) {
+        writeName(name, labels, null);
+        sb.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    MetricsWriter sample(String name, double value, String... labels) {
+        writeName(name, labels, null);
+        sb.append(' ').append(formatDouble(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes a single unlabelled counter.
+     */
+    MetricsWriter counter(String name, String help, long value) {
+        return family(name, "counter", help).sample(name, value);
+    }
+
+    /**
+     * Writes a single unlabelled gauge.
+     */
+    MetricsWriter gauge(String name, String help, long value) {
+        return family(name, "gauge", help).sample(name, value);
+    }
+
+    /**
+     * Writes a single unlabelled gauge.
+     */
+    MetricsWriter gauge(String name, String help, double value) {
+        return family(name, "gauge", help).sample(name, value);
+    }
+
+    /**
+     * Writes the samples of a histogram of durations. Durations are converted to seconds, as Prometheus expects.
+     *
+     * @param name the metric name
+     * @param h the histogram
+     * @param labels alternating label names and values
+     *
+     * @return this writer
+     */
+    MetricsWriter histogram(String name, Histogram h, String... labels) {
+        long count = 0;
+        for (int i = 0; i < h.getBucketCount(); i++) {
+            count += h.getCount(i);
+            writeName(name + "_bucket", labels, formatDouble(h.getBound(i) / NANOS_PER_SECOND));
+            sb.append(' ').append(count).append('\n');
+        }
+        count += h.getCount(h.getBucketCount());
+        writeName(name + "_bucket", labels, "+Inf");
+        sb.append(' ').append(count).append('\n');
+        sample(name + "_sum", h.getSumNanos() / NANOS_PER_SECOND, labels);
+        sample(name + "_count", count, labels);
+        return this;
+    }
+
+    private void writeName(String name, String[] labels, String le) {
+        sb.append(name);
+        if (labels.length > 0 || le != null) {
+            sb.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                writeLabel(labels[i], labels[i + 1]);
+            }
+            if (le != null) {
+                if (labels.length > 0) {
+                    sb.append(',');
+                }
+                writeLabel("le", le);
+            }
+            sb.append('}');
+        }
+    }
+
+    private void writeLabel(String name, String value) {
+        sb.append(name).append("=\"");
+        String v = value != null ? value : "";
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String formatDouble(double d) {
+        if (Double.isNaN(d)) {
+            return "NaN";
+        } else if (Double.isInfinite(d)) {
+            return d > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(d);
+    }
+}
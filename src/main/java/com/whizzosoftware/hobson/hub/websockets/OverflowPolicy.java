@@ -0,0 +1,45 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+/**
+ * Determines what happens when a slow client's outbound queue is full.
+ *
+ * @author Dan Noguerol
+ */
+enum OverflowPolicy {
+    /**
+     * Discard the oldest queued frame to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new frame.
+     */
+    DROP_NEWEST,
+    /**
+     * Replace any queued frame for the same entity with the new one; falls back to DROP_OLDEST for frames that
+     * can't be coalesced.
+     */
+    COALESCE,
+    /**
+     * Close the connection with a policy violation close code.
+     */
+    DISCONNECT;
+
+    static OverflowPolicy parse(String s, OverflowPolicy def) {
+        if (s != null) {
+            try {
+                return OverflowPolicy.valueOf(s.trim().toUpperCase());
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return def;
+    }
+}
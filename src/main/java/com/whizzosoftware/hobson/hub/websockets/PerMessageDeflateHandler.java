@@ -0,0 +1,173 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Implements the server side of the permessage-deflate WebSocket extension (RFC 7692), which the version of Netty
+ * in use doesn't provide. This handler:
+ *
+ * 1. Selects an acceptable permessage-deflate offer from the handshake request.
+ * 2. Adds the negotiated extension to the handshake's 101 response.
+ * 3. Decompresses compressed messages received from the client.
+ *
+ * The server always uses server_no_context_takeover so that compressed payloads can be shared between clients.
+ * java.util.zip always compresses with a 32K window, so a server_max_window_bits limit is honored by only
+ * compressing messages that are no larger than the window; larger messages are sent uncompressed.
+ *
+ * @author Dan Noguerol
+ */
+class PerMessageDeflateHandler extends ChannelDuplexHandler {
+    private static final Logger logger = LoggerFactory.getLogger(PerMessageDeflateHandler.class);
+
+    static final AttributeKey<Integer> MAX_COMPRESSED_SIZE_KEY = AttributeKey.valueOf("hobson.maxCompressedSize");
+
+    static final String EXTENSION_NAME = "permessage-deflate";
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_INVALID_DATA = 1007;
+    private static final int MAX_MESSAGE_SIZE = 65536;
+
+    private final WebSocketsConfig config;
+    private String responseHeader;
+    private Inflater inflater;
+
+    PerMessageDeflateHandler(WebSocketsConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpRequest) {
+            negotiate(ctx, (FullHttpRequest)msg);
+        } else if (msg instanceof WebSocketFrame && (((WebSocketFrame)msg).rsv() & MessageCompressor.RSV1) != 0) {
+            msg = decompress(ctx, (WebSocketFrame)msg);
+            if (msg == null) {
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (responseHeader != null && msg instanceof HttpResponse && HttpResponseStatus.SWITCHING_PROTOCOLS.equals(((HttpResponse)msg).getStatus())) {
+            ((HttpResponse)msg).headers().set(EXTENSIONS_HEADER, responseHeader);
+            responseHeader = null;
+            inflater = new Inflater(true);
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void negotiate(ChannelHandlerContext ctx, FullHttpRequest req) {
+        int level = config.getCompressionLevel();
+        String offers = HttpHeaders.getHeader(req, EXTENSIONS_HEADER);
+        if (level > 0 && offers != null) {
+            for (String offer : offers.split(",")) {
+                Integer windowBits = acceptOffer(offer);
+                if (windowBits != null) {
+                    StringBuilder sb = new StringBuilder(EXTENSION_NAME).append("; server_no_context_takeover");
+                    if (windowBits < 15) {
+                        sb.append("; server_max_window_bits=").append(windowBits);
+                    }
+                    responseHeader = sb.toString();
+                    ctx.channel().attr(MAX_COMPRESSED_SIZE_KEY).set(1 << windowBits);
+                    logger.trace("Negotiated {}", responseHeader);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether a permessage-deflate offer can be accepted.
+     *
+     * @param offer a single extension offer from the Sec-WebSocket-Extensions header
+     *
+     * @return the server window bits to use or null if the offer can't be accepted
+     */
+    private Integer acceptOffer(String offer) {
+        String[] params = offer.split(";");
+        if (!EXTENSION_NAME.equalsIgnoreCase(params[0].trim())) {
+            return null;
+        }
+        int windowBits = config.getCompressionWindowBits();
+        for (int i = 1; i < params.length; i++) {
+            String p = params[i].trim();
+            String value = null;
+            int ix = p.indexOf('=');
+            if (ix > -1) {
+                value = p.substring(ix + 1).trim().replace("\"", "");
+                p = p.substring(0, ix).trim();
+            }
+            if ("server_max_window_bits".equalsIgnoreCase(p)) {
+                try {
+                    int bits = Integer.parseInt(value);
+                    if (bits < 8 || bits > 15) {
+                        return null;
+                    }
+                    windowBits = Math.min(windowBits, bits);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if (!"server_no_context_takeover".equalsIgnoreCase(p) && !"client_no_context_takeover".equalsIgnoreCase(p) && !"client_max_window_bits".equalsIgnoreCase(p)) {
+                return null;
+            }
+        }
+        return windowBits;
+    }
+
+    private WebSocketFrame decompress(ChannelHandlerContext ctx, WebSocketFrame frame) {
+        try {
+            if (inflater == null || !frame.isFinalFragment() || !(frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame)) {
+                logger.debug("Received unexpected compressed frame from {}", ctx.channel().remoteAddress());
+                ctx.writeAndFlush(new CloseWebSocketFrame(CLOSE_PROTOCOL_ERROR, "Unsupported compressed frame")).addListener(ChannelFutureListener.CLOSE);
+                return null;
+            }
+            ByteBuf content = MessageCompressor.decompress(inflater, frame.content(), MAX_MESSAGE_SIZE, ctx.alloc());
+            int rsv = frame.rsv() & ~MessageCompressor.RSV1;
+            return frame instanceof TextWebSocketFrame ? new TextWebSocketFrame(true, rsv, content) : new BinaryWebSocketFrame(true, rsv, content);
+        } catch (DataFormatException e) {
+            logger.debug("Invalid compressed frame from {}", ctx.channel().remoteAddress(), e);
+            ctx.writeAndFlush(new CloseWebSocketFrame(CLOSE_INVALID_DATA, "Invalid compressed frame")).addListener(ChannelFutureListener.CLOSE);
+            return null;
+        } finally {
+            frame.release();
+        }
+    }
+}
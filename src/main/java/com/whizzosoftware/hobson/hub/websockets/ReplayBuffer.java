@@ -0,0 +1,258 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Assigns sequence numbers to outbound events and retains the most recent encoded events so that a client that
+ * reconnects can be sent only the events it missed. Entries are bounded both by count and by age; the payloads are
+ * the same (pooled, direct) buffers that were sent to connected clients, so retaining them costs no extra encoding.
+ * The event itself is kept as well so that it can be encoded in other wire formats when a client that uses one of
+ * them resumes.
+ *
+ * Sequence numbers start at the current time in microseconds so they keep increasing across plugin restarts; a
+ * sequence number from before a restart is therefore always older than anything in the buffer.
+ *
+ * Events are added in sequence number order but need not be encoded in that order: a caller takes a sequence number
+ * with nextSequence(), encodes the event without holding any lock and then, holding the instance's monitor, calls
+ * awaitTurn() followed by add(). Every sequence number taken must be added, even if only with a null payload.
+ * getSequence() only reports events that have been added, so a resuming client never skips an event whose encoding
+ * is still in progress.
+ *
+ * @author Dan Noguerol
+ */
+class ReplayBuffer {
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long sequence = System.currentTimeMillis() * 1000;
+    private long added = sequence;
+    private int maxEntries;
+    private long maxAgeMillis;
+
+    ReplayBuffer(int maxEntries, long maxAgeMillis) {
+        setLimits(maxEntries, maxAgeMillis);
+    }
+
+    /**
+     * Changes the buffer limits, discarding any entries that exceed them.
+     *
+     * @param maxEntries the maximum number of events retained (0 disables replay)
+     * @param maxAgeMillis the maximum age of retained events in milliseconds
+     */
+    synchronized void setLimits(int maxEntries, long maxAgeMillis) {
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+        trim(System.currentTimeMillis());
+    }
+
+    synchronized boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Assigns the next sequence number.
+     *
+     * @return the sequence number
+     */
+    synchronized long nextSequence() {
+        return ++sequence;
+    }
+
+    /**
+     * Returns the sequence number of the most recently added event. All events up to it have been added.
+     *
+     * @return a long
+     */
+    synchronized long getSequence() {
+        return added;
+    }
+
+    /**
+     * Waits until the events with all sequence numbers before the given one have been added. The caller must hold
+     * the instance's monitor, which is released while waiting.
+     *
+     * @param seq the sequence number about to be added
+     */
+    synchronized void awaitTurn(long seq) {
+        boolean interrupted = false;
+        while (added < seq - 1) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the earlier events are always added, so keep waiting for them
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Retains an encoded event. The buffer takes its own reference to the payload; the caller's reference is
+     * unaffected. Events must be added in sequence number order (see awaitTurn()).
+     *
+     * @param seq the event's sequence number
+     * @param event the event
+     * @param task the task associated with the event (if any)
+     * @param format the format of the payload
+     * @param payload the encoded event (or null if it wasn't encoded, in which case only the sequence number is
+     *                accounted for)
+     */
+    synchronized void add(long seq, HobsonEvent event, HobsonTask task, WireFormat format, ByteBuf payload) {
+        if (seq <= added) {
+            // the buffer was cleared while the event was being encoded
+            return;
+        }
+        added = seq;
+        notifyAll();
+        if (maxEntries > 0 && payload != null) {
+            long now = System.currentTimeMillis();
+            Entry e = new Entry(seq, now, event, task);
+            e.payloads[format.ordinal()] = payload.retain();
+            entries.add(e);
+            trim(now);
+        }
+    }
+
+    /**
+     * Collects the events a client missed after a given sequence number. Only the events (and, for variable updates,
+     * only the individual updates) that match the client's subscriptions are included, just as they would have been
+     * when dispatched live.
+     *
+     * @param lastSeq the last sequence number the client received
+     * @param format the wire format the client uses
+     * @param encoder the encoder used for events that haven't been encoded in that format yet
+     * @param filter the client's subscriptions (or null if it has never subscribed and receives all events)
+     * @param out the list to add retained duplicates of the missed payloads to (the caller must release them)
+     *
+     * @return the most recent sequence number (which the replayed events run up to) or -1 if the requested events
+     * are no longer available and the client needs to resynchronize its state
+     */
+    synchronized long getEventsAfter(long lastSeq, WireFormat format, EventEncoder encoder, Collection<Subscription> filter, List<ByteBuf> out) {
+        trim(System.currentTimeMillis());
+        if (lastSeq > added) {
+            return -1;
+        }
+        if (lastSeq == added) {
+            return added;
+        }
+        long oldest = entries.isEmpty() ? added + 1 : entries.peekFirst().seq;
+        if (lastSeq + 1 < oldest) {
+            return -1;
+        }
+        for (Entry e : entries) {
+            if (e.seq > lastSeq) {
+                BitSet mask = filter != null ? match(e, filter) : null;
+                if (mask == null) {
+                    ByteBuf payload = e.payloads[format.ordinal()];
+                    if (payload == null) {
+                        payload = encoder.encode(e.event, e.task, e.seq, format);
+                        e.payloads[format.ordinal()] = payload;
+                    }
+                    out.add(payload.duplicate().retain());
+                } else if (!mask.isEmpty()) {
+                    out.add(encoder.encodeSubset((DeviceVariablesUpdateEvent)e.event, mask, e.seq, format));
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Releases all retained events.
+     */
+    synchronized void clear() {
+        for (Entry e : entries) {
+            e.release();
+        }
+        entries.clear();
+        // nothing that was in progress will be replayed, so don't hold up later events waiting for it
+        added = sequence;
+        notifyAll();
+    }
+
+    /**
+     * Determines which part of a retained event matches a set of subscriptions.
+     *
+     * @return null if the whole event matches, otherwise the indices of the matching variable updates (empty if
+     * nothing matches)
+     */
+    private static BitSet match(Entry e, Collection<Subscription> filter) {
+        if (e.event == null) {
+            return new BitSet();
+        }
+        if (e.event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)e.event).getUpdates();
+            BitSet mask = new BitSet(updates.size());
+            for (int i = 0; i < updates.size(); i++) {
+                DeviceVariableUpdate u = updates.get(i);
+                if (EventEncoder.matches(filter, e.event.getEventId(), u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName())) {
+                    mask.set(i);
+                }
+            }
+            return mask.cardinality() == updates.size() ? null : mask;
+        }
+        String[] key = EventDispatcher.getRoutingKey(e.event);
+        return EventEncoder.matches(filter, e.event.getEventId(), key[0], key[1], key[2], null) ? null : new BitSet();
+    }
+
+    private void trim(long now) {
+        while (entries.size() > maxEntries) {
+            entries.poll().release();
+        }
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (now - e.timestamp <= maxAgeMillis) {
+                break;
+            }
+            e.release();
+            it.remove();
+        }
+    }
+
+    private static class Entry {
+        final long seq;
+        final long timestamp;
+        final HobsonEvent event;
+        final HobsonTask task;
+        final ByteBuf[] payloads = new ByteBuf[WireFormat.values().length];
+
+        Entry(long seq, long timestamp, HobsonEvent event, HobsonTask task) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.event = event;
+            this.task = task;
+        }
+
+        void release() {
+            for (ByteBuf b : payloads) {
+                if (b != null) {
+                    b.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+
+import java.util.List;
+
+/**
+ * Channel handler that extracts the "lastSeq" query parameter from a WebSocket handshake request and stores it as a
+ * channel attribute. The query string is removed from the request URI since the WebSocket handshake handler only
+ * accepts requests for the exact WebSocket path.
+ *
+ * @author Dan Noguerol
+ */
+class ResumeParameterHandler extends ChannelInboundHandlerAdapter {
+    static final AttributeKey<Long> LAST_SEQ_KEY = AttributeKey.valueOf("hobson.lastSeq");
+
+    private final String path;
+
+    ResumeParameterHandler(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpRequest) {
+            FullHttpRequest req = (FullHttpRequest)msg;
+            QueryStringDecoder qsd = new QueryStringDecoder(req.getUri());
+            if (path.equals(qsd.path()) && !qsd.parameters().isEmpty()) {
+                List<String> values = qsd.parameters().get("lastSeq");
+                if (values != null && values.size() > 0) {
+                    try {
+                        ctx.channel().attr(LAST_SEQ_KEY).set(Long.parseLong(values.get(0)));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                req.setUri(path);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
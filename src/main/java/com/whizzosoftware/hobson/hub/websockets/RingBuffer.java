@@ -0,0 +1,110 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer that is safe for multiple producers and multiple consumers. Each slot carries a
+ * sequence number that tells producers when it is free and consumers when it has been published, so neither side
+ * ever blocks the other.
+ *
+ * @author Dan Noguerol
+ */
+class RingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the requested capacity (rounded up to the next power of two)
+     */
+    RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param item the item
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(T item) {
+        long pos = enqueuePosition.get();
+        for (;;) {
+            int ix = (int)(pos & mask);
+            long dif = sequences.get(ix) - pos;
+            if (dif == 0) {
+                if (enqueuePosition.compareAndSet(pos, pos + 1)) {
+                    items.set(ix, item);
+                    sequences.set(ix, pos + 1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+            pos = enqueuePosition.get();
+        }
+    }
+
+    /**
+     * Removes the oldest item.
+     *
+     * @return the item or null if the buffer is empty
+     */
+    T poll() {
+        long pos = dequeuePosition.get();
+        for (;;) {
+            int ix = (int)(pos & mask);
+            long dif = sequences.get(ix) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePosition.compareAndSet(pos, pos + 1)) {
+                    T item = items.get(ix);
+                    items.set(ix, null);
+                    sequences.set(ix, pos + mask + 1);
+                    return item;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+            pos = dequeuePosition.get();
+        }
+    }
+
+    /**
+     * Returns the approximate number of items in the buffer.
+     *
+     * @return an int
+     */
+    int size() {
+        long s = enqueuePosition.get() - dequeuePosition.get();
+        return (int)Math.max(0, Math.min(s, capacity()));
+    }
+}
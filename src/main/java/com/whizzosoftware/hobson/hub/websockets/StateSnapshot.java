@@ -0,0 +1,205 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceAvailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceStartedEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.event.plugin.PluginStatusChangeEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskDeletedEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskExecutionEvent;
+import com.whizzosoftware.hobson.api.event.task.TaskUpdatedEvent;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory view of hub state that is maintained from the events the plugin receives: the current value of each
+ * device variable, device availability, plugin status, presence entity locations and task metadata. It lets a newly
+ * connected client receive the current state in a single frame.
+ *
+ * Each entry records the ID of the event that last changed it so that the view can be filtered using the same
+ * subscriptions that filter events.
+ *
+ * @author Dan Noguerol
+ */
+class StateSnapshot {
+    private final ConcurrentMap<VariableConflator.Key,VariableState> variables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,DeviceState> devices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,PluginState> plugins = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,PresenceState> presence = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,TaskState> tasks = new ConcurrentHashMap<>();
+
+    /**
+     * Applies an event to the view.
+     *
+     * @param event the event
+     * @param task the task associated with the event (if any)
+     */
+    void update(HobsonEvent event, HobsonTask task) {
+        String eventId = event.getEventId();
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+            for (int i = 0; i < updates.size(); i++) {
+                DeviceVariableUpdate u = updates.get(i);
+                VariableConflator.Key key = new VariableConflator.Key(u.getContext().getHubId(), u.getPluginId(), u.getDeviceId(), u.getContext().getName());
+                variables.put(key, new VariableState(eventId, key, u.getNewValue()));
+            }
+        } else if (event instanceof DeviceAvailableEvent || event instanceof DeviceStartedEvent) {
+            putDevice(eventId, ((DeviceEvent)event).getDeviceContext(), true);
+        } else if (event instanceof DeviceUnavailableEvent) {
+            putDevice(eventId, ((DeviceUnavailableEvent)event).getDeviceContext(), false);
+        } else if (event instanceof PluginStatusChangeEvent) {
+            PluginStatusChangeEvent e = (PluginStatusChangeEvent)event;
+            String hubId = e.getContext().getHubId();
+            String pluginId = e.getContext().getPluginId();
+            Object code = e.getStatus() != null ? e.getStatus().getCode() : null;
+            String message = e.getStatus() != null ? e.getStatus().getMessage() : null;
+            plugins.put(hubId + "/" + pluginId, new PluginState(eventId, hubId, pluginId, code, message));
+        } else if (event instanceof PresenceUpdateNotificationEvent) {
+            PresenceUpdateNotificationEvent e = (PresenceUpdateNotificationEvent)event;
+            String hubId = e.getEntityContext().getHubId();
+            String entityId = e.getEntityContext().getEntityId();
+            presence.put(hubId + "/" + entityId, new PresenceState(eventId, hubId, entityId, e.getNewLocation()));
+        } else if (event instanceof TaskUpdatedEvent) {
+            if (task != null) {
+                putTask(eventId, ((TaskUpdatedEvent)event).getTask(), task);
+            }
+        } else if (event instanceof TaskExecutionEvent) {
+            TaskContext ctx = ((TaskExecutionEvent)event).getContext();
+            if (task != null && !tasks.containsKey(ctx.getHubId() + "/" + ctx.getTaskId())) {
+                putTask(eventId, ctx, task);
+            }
+        } else if (event instanceof TaskDeletedEvent) {
+            TaskContext ctx = ((TaskDeletedEvent)event).getTask();
+            tasks.remove(ctx.getHubId() + "/" + ctx.getTaskId());
+        }
+    }
+
+    Collection<VariableState> getVariables() {
+        return variables.values();
+    }
+
+    Collection<DeviceState> getDevices() {
+        return devices.values();
+    }
+
+    Collection<PluginState> getPlugins() {
+        return plugins.values();
+    }
+
+    Collection<PresenceState> getPresence() {
+        return presence.values();
+    }
+
+    Collection<TaskState> getTasks() {
+        return tasks.values();
+    }
+
+    void clear() {
+        variables.clear();
+        devices.clear();
+        plugins.clear();
+        presence.clear();
+        tasks.clear();
+    }
+
+    private void putDevice(String eventId, DeviceContext ctx, boolean available) {
+        devices.put(ctx.getHubId() + "/" + ctx.getPluginId() + "/" + ctx.getDeviceId(), new DeviceState(eventId, ctx.getHubId(), ctx.getPluginId(), ctx.getDeviceId(), available));
+    }
+
+    private void putTask(String eventId, TaskContext ctx, HobsonTask task) {
+        tasks.put(ctx.getHubId() + "/" + ctx.getTaskId(), new TaskState(eventId, ctx, task.getName(), task.getDescription(), task.isEnabled()));
+    }
+
+    static class VariableState {
+        final String eventId;
+        final VariableConflator.Key key;
+        final Object value;
+
+        VariableState(String eventId, VariableConflator.Key key, Object value) {
+            this.eventId = eventId;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    static class DeviceState {
+        final String eventId;
+        final String hubId;
+        final String pluginId;
+        final String deviceId;
+        final boolean available;
+
+        DeviceState(String eventId, String hubId, String pluginId, String deviceId, boolean available) {
+            this.eventId = eventId;
+            this.hubId = hubId;
+            this.pluginId = pluginId;
+            this.deviceId = deviceId;
+            this.available = available;
+        }
+    }
+
+    static class PluginState {
+        final String eventId;
+        final String hubId;
+        final String pluginId;
+        final Object code;
+        final String message;
+
+        PluginState(String eventId, String hubId, String pluginId, Object code, String message) {
+            this.eventId = eventId;
+            this.hubId = hubId;
+            this.pluginId = pluginId;
+            this.code = code;
+            this.message = message;
+        }
+    }
+
+    static class PresenceState {
+        final String eventId;
+        final String hubId;
+        final String entityId;
+        final Object location;
+
+        PresenceState(String eventId, String hubId, String entityId, Object location) {
+            this.eventId = eventId;
+            this.hubId = hubId;
+            this.entityId = entityId;
+            this.location = location;
+        }
+    }
+
+    static class TaskState {
+        final String eventId;
+        final TaskContext context;
+        final String name;
+        final String description;
+        final boolean enabled;
+
+        TaskState(String eventId, TaskContext context, String name, String description, boolean enabled) {
+            this.eventId = eventId;
+            this.context = context;
+            this.name = name;
+            this.description = description;
+            this.enabled = enabled;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Records the wire format that corresponds to the subprotocol selected by the handshaker. The selection is only
+ * visible in the handshake's 101 response, so this handler watches for it, stores the format in a channel attribute
+ * and then removes itself from the pipeline.
+ *
+ * @author Dan Noguerol
+ */
+class SubprotocolDetector extends ChannelOutboundHandlerAdapter {
+    private static final String PROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse && HttpResponseStatus.SWITCHING_PROTOCOLS.equals(((HttpResponse)msg).getStatus())) {
+            ctx.channel().attr(WireFormat.KEY).set(WireFormat.fromSubprotocol(((HttpResponse)msg).headers().get(PROTOCOL_HEADER)));
+            super.write(ctx, msg, promise);
+            ctx.pipeline().remove(this);
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+}
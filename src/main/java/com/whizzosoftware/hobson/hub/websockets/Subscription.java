@@ -0,0 +1,175 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.Channel;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A client's interest in a subset of events. Any null filter field acts as a wildcard. A subscription can also
+ * request that variable updates be conflated over a time window.
+ *
+ * @author Dan Noguerol
+ */
+class Subscription {
+    static final String WILDCARD = "*";
+
+    /**
+     * Upper bound on the number of event IDs a subscription can filter on.
+     */
+    static final int MAX_EVENTS = 32;
+
+    private final Channel channel;
+    private final String id;
+    private final Set<String> events;
+    private final String hubId;
+    private final String pluginId;
+    private final String deviceId;
+    private final String variable;
+    private final Long conflateWindow;
+
+    Subscription(Channel channel, String id, Set<String> events, String hubId, String pluginId, String deviceId, String variable, Long conflateWindow) {
+        this.channel = channel;
+        this.id = id;
+        this.events = events != null && events.size() > 0 ? Collections.unmodifiableSet(events) : null;
+        this.hubId = hubId;
+        this.pluginId = pluginId;
+        this.deviceId = deviceId;
+        this.variable = variable;
+        this.conflateWindow = conflateWindow;
+    }
+
+    /**
+     * Creates a subscription from a client "subscribe" request.
+     *
+     * @param channel the channel the request was received on
+     * @param json the request
+     *
+     * @return a Subscription instance
+     */
+    static Subscription fromJSON(Channel channel, JSONObject json) {
+        String id = json.optString("subscriptionId", null);
+        if (id == null) {
+            throw new IllegalArgumentException("subscriptionId is required");
+        }
+        Set<String> events = null;
+        JSONArray a = json.optJSONArray("events");
+        if (a != null) {
+            if (a.length() > MAX_EVENTS) {
+                throw new IllegalArgumentException("events can list at most " + MAX_EVENTS + " event IDs");
+            }
+            events = new HashSet<>();
+            for (int i = 0; i < a.length(); i++) {
+                events.add(a.getString(i));
+            }
+        }
+        return new Subscription(
+            channel,
+            id,
+            events,
+            json.optString("hubId", null),
+            json.optString("pluginId", null),
+            json.optString("deviceId", null),
+            json.optString("variable", null),
+            json.has("conflate") ? json.getLong("conflate") : null
+        );
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the event IDs this subscription is interested in.
+     *
+     * @return a Set of event IDs or null for all events
+     */
+    Set<String> getEvents() {
+        return events;
+    }
+
+    String getHubId() {
+        return hubId;
+    }
+
+    String getPluginId() {
+        return pluginId;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getVariable() {
+        return variable;
+    }
+
+    /**
+     * Returns the variable update conflation window requested by the client.
+     *
+     * @return the window in milliseconds, 0 to disable conflation or null to use the plugin default
+     */
+    Long getConflateWindow() {
+        return conflateWindow;
+    }
+
+    /**
+     * Tests the subscription against an event's routing attributes. A filter field that is set only matches events
+     * that carry that attribute.
+     *
+     * @param eventId the event ID
+     * @param hubId the hub ID (or null if the event has none)
+     * @param pluginId the plugin ID (or null if the event has none)
+     * @param deviceId the device ID (or null if the event has none)
+     * @param variable the variable name (or null if the event has none)
+     *
+     * @return a boolean
+     */
+    boolean matches(String eventId, String hubId, String pluginId, String deviceId, String variable) {
+        return (
+            (events == null || events.contains(eventId)) &&
+            (this.hubId == null || this.hubId.equals(hubId)) &&
+            (this.pluginId == null || this.pluginId.equals(pluginId)) &&
+            (this.deviceId == null || this.deviceId.equals(deviceId)) &&
+            (this.variable == null || this.variable.equals(variable))
+        );
+    }
+
+    /**
+     * Returns the index path of this subscription for a particular event ID.
+     *
+     * @param eventId the event ID (or the wildcard)
+     *
+     * @return a String array
+     */
+    String[] getIndexPath(String eventId) {
+        return new String[] {
+            eventId,
+            hubId != null ? hubId : WILDCARD,
+            pluginId != null ? pluginId : WILDCARD,
+            deviceId != null ? deviceId : WILDCARD,
+            variable != null ? variable : WILDCARD
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "Subscription[id=" + id + ",events=" + events + ",hubId=" + hubId + ",pluginId=" + pluginId + ",deviceId=" + deviceId + ",variable=" + variable + ",conflate=" + conflateWindow + "]";
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.Channel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * An index of client subscriptions. Subscriptions are stored in a tree keyed by event ID, hub ID, plugin ID,
+ * device ID and variable name (with "*" branches for wildcards) so that the channels interested in an event can be
+ * found with a bounded number of map lookups regardless of how many clients are connected.
+ *
+ * Channels that have never subscribed are "unfiltered" and receive all events. A channel that removes its last
+ * subscription receives nothing until it subscribes again; it does not go back to receiving everything.
+ *
+ * Lookups are lock-free; mutations are serialized.
+ *
+ * @author Dan Noguerol
+ */
+class SubscriptionRegistry {
+    static final int MAX_SUBSCRIPTIONS_PER_CHANNEL = 256;
+
+    private static final int DEPTH = 5;
+
+    private final Node root = new Node();
+    private final Set<Channel> unfilteredChannels = Collections.newSetFromMap(new ConcurrentHashMap<Channel,Boolean>());
+    private final ConcurrentMap<Channel,Map<String,Subscription>> channelSubscriptions = new ConcurrentHashMap<>();
+    private final Map<Long,Integer> windowCounts = new HashMap<>();
+
+    /**
+     * Registers a newly connected channel. It will receive all events until it subscribes.
+     *
+     * @param channel the channel
+     */
+    void addChannel(Channel channel) {
+        unfilteredChannels.add(channel);
+    }
+
+    /**
+     * Removes a channel and all of its subscriptions.
+     *
+     * @param channel the channel
+     */
+    synchronized void removeChannel(Channel channel) {
+        unfilteredChannels.remove(channel);
+        Map<String,Subscription> subs = channelSubscriptions.remove(channel);
+        if (subs != null) {
+            for (Subscription s : subs.values()) {
+                unindex(s);
+            }
+        }
+    }
+
+    /**
+     * Adds (or replaces) a subscription.
+     *
+     * @param sub the subscription
+     */
+    synchronized void subscribe(Subscription sub) {
+        Map<String,Subscription> subs = channelSubscriptions.get(sub.getChannel());
+        if (subs == null) {
+            subs = new ConcurrentHashMap<>();
+            channelSubscriptions.put(sub.getChannel(), subs);
+        }
+        Subscription old = subs.get(sub.getId());
+        if (old == null && subs.size() >= MAX_SUBSCRIPTIONS_PER_CHANNEL) {
+            throw new IllegalStateException("Maximum number of subscriptions reached");
+        }
+        if (old != null) {
+            unindex(old);
+        }
+        // the channel stops being unfiltered before its subscription becomes visible so that a concurrent lookup
+        // doesn't find it both ways
+        unfilteredChannels.remove(sub.getChannel());
+        subs.put(sub.getId(), sub);
+        index(sub);
+    }
+
+    /**
+     * Removes a subscription. A channel whose last subscription is removed receives no events until it subscribes
+     * again.
+     *
+     * @param channel the channel that owns the subscription
+     * @param id the subscription ID
+     *
+     * @return true if the subscription existed
+     */
+    synchronized boolean unsubscribe(Channel channel, String id) {
+        Map<String,Subscription> subs = channelSubscriptions.get(channel);
+        if (subs != null) {
+            Subscription s = subs.remove(id);
+            if (s != null) {
+                unindex(s);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether any subscription explicitly requests a conflation window.
+     *
+     * @param window the normalized window in milliseconds
+     *
+     * @return a boolean
+     */
+    synchronized boolean isWindowInUse(long window) {
+        return windowCounts.containsKey(window);
+    }
+
+    /**
+     * Returns the channels that have no subscriptions and should receive all events.
+     *
+     * @return a Collection of channels
+     */
+    Collection<Channel> getUnfilteredChannels() {
+        return unfilteredChannels;
+    }
+
+    /**
+     * Returns the subscriptions for a channel.
+     *
+     * @param channel the channel
+     *
+     * @return a Collection of subscriptions (or null if the channel has never subscribed)
+     */
+    Collection<Subscription> getSubscriptions(Channel channel) {
+        Map<String,Subscription> subs = channelSubscriptions.get(channel);
+        return subs != null ? subs.values() : null;
+    }
+
+    /**
+     * Finds all subscriptions matching an event's routing attributes. A null attribute indicates that the event
+     * does not carry it and only matches wildcard subscriptions at that level.
+     *
+     * @param eventId the event ID
+     * @param hubId the hub ID
+     * @param pluginId the plugin ID
+     * @param deviceId the device ID
+     * @param variable the variable name
+     * @param results the collection to add matches to
+     */
+    void match(String eventId, String hubId, String pluginId, String deviceId, String variable, Collection<Subscription> results) {
+        if (!channelSubscriptions.isEmpty()) {
+            match(root, 0, new String[] {eventId, hubId, pluginId, deviceId, variable}, results);
+        }
+    }
+
+    private void match(Node node, int depth, String[] key, Collection<Subscription> results) {
+        if (depth == DEPTH) {
+            results.addAll(node.subscriptions);
+        } else {
+            String k = key[depth];
+            Node n;
+            if (k != null && !Subscription.WILDCARD.equals(k)) {
+                n = node.children.get(k);
+                if (n != null) {
+                    match(n, depth + 1, key, results);
+                }
+            }
+            n = node.children.get(Subscription.WILDCARD);
+            if (n != null) {
+                match(n, depth + 1, key, results);
+            }
+        }
+    }
+
+    private void index(Subscription s) {
+        Long w = getWindow(s);
+        if (w != null) {
+            Integer n = windowCounts.get(w);
+            windowCounts.put(w, n != null ? n + 1 : 1);
+        }
+        if (s.getEvents() != null) {
+            for (String e : s.getEvents()) {
+                addToPath(s.getIndexPath(e), s);
+            }
+        } else {
+            addToPath(s.getIndexPath(Subscription.WILDCARD), s);
+        }
+    }
+
+    private void unindex(Subscription s) {
+        Long w = getWindow(s);
+        if (w != null) {
+            Integer n = windowCounts.get(w);
+            if (n == null || n <= 1) {
+                windowCounts.remove(w);
+            } else {
+                windowCounts.put(w, n - 1);
+            }
+        }
+        if (s.getEvents() != null) {
+            for (String e : s.getEvents()) {
+                removeFromPath(root, 0, s.getIndexPath(e), s);
+            }
+        } else {
+            removeFromPath(root, 0, s.getIndexPath(Subscription.WILDCARD), s);
+        }
+    }
+
+    private static Long getWindow(Subscription s) {
+        return s.getConflateWindow() != null && s.getConflateWindow() > 0 ? EventDispatcher.normalizeWindow(s.getConflateWindow()) : null;
+    }
+
+    private void addToPath(String[] path, Subscription s) {
+        Node node = root;
+        for (String k : path) {
+            Node n = node.children.get(k);
+            if (n == null) {
+                n = new Node();
+                node.children.put(k, n);
+            }
+            node = n;
+        }
+        node.subscriptions.add(s);
+    }
+
+    /**
+     * Removes a subscription from the tree, pruning any nodes that become empty.
+     *
+     * @return true if the node is now empty
+     */
+    private boolean removeFromPath(Node node, int depth, String[] path, Subscription s) {
+        if (depth == DEPTH) {
+            node.subscriptions.remove(s);
+            return node.subscriptions.isEmpty();
+        } else {
+            Node n = node.children.get(path[depth]);
+            if (n != null && removeFromPath(n, depth + 1, path, s)) {
+                node.children.remove(path[depth]);
+            }
+            return node.children.isEmpty();
+        }
+    }
+
+    private static class Node {
+        final ConcurrentMap<String,Node> children = new ConcurrentHashMap<>();
+        final Set<Subscription> subscriptions = new CopyOnWriteArraySet<>();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of the tasks used to enrich task events, so that task executions don't require a task
+ * manager lookup (which can hit persistent storage) on the dispatch path. Tasks are loaded lazily on first use and
+ * reloaded when a task update event arrives; task deletion evicts them.
+ *
+ * @author Dan Noguerol
+ */
+class TaskCache {
+    private final Loader loader;
+    private final Map<String,HobsonTask> entries = new LinkedHashMap<String,HobsonTask>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,HobsonTask> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int maxEntries;
+    private long generation;
+
+    TaskCache(int maxEntries, Loader loader) {
+        this.loader = loader;
+        setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Changes the maximum number of cached tasks, evicting the least recently used ones if necessary.
+     *
+     * @param maxEntries the maximum number of cached tasks (0 disables caching)
+     */
+    synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        if (entries.size() > maxEntries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns a task, loading it if it isn't cached.
+     *
+     * @param ctx the task context
+     *
+     * @return a HobsonTask or null if the task doesn't exist
+     */
+    HobsonTask get(TaskContext ctx) {
+        String key = getKey(ctx);
+        long gen;
+        synchronized (this) {
+            HobsonTask task = entries.get(key);
+            if (task != null) {
+                hits.incrementAndGet();
+                return task;
+            }
+            gen = generation;
+        }
+        misses.incrementAndGet();
+        return load(key, ctx, gen);
+    }
+
+    /**
+     * Discards any cached copy of a task and loads the current one.
+     *
+     * @param ctx the task context
+     *
+     * @return a HobsonTask or null if the task doesn't exist
+     */
+    HobsonTask refresh(TaskContext ctx) {
+        String key = getKey(ctx);
+        long gen;
+        synchronized (this) {
+            entries.remove(key);
+            gen = ++generation;
+        }
+        return load(key, ctx, gen);
+    }
+
+    /**
+     * Discards any cached copy of a task.
+     *
+     * @param ctx the task context
+     */
+    synchronized void invalidate(TaskContext ctx) {
+        entries.remove(getKey(ctx));
+        generation++;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        generation++;
+    }
+
+    /**
+     * Loads a task and caches it unless the cache was invalidated while it was loading (in which case the loaded
+     * copy may already be stale).
+     */
+    private HobsonTask load(String key, TaskContext ctx, long gen) {
+        HobsonTask task = loader.load(ctx);
+        if (task != null) {
+            synchronized (this) {
+                if (gen == generation && maxEntries > 0) {
+                    entries.put(key, task);
+                }
+            }
+        }
+        return task;
+    }
+
+    private static String getKey(TaskContext ctx) {
+        return ctx.getHubId() + "/" + ctx.getTaskId();
+    }
+
+    /**
+     * Loads tasks that aren't cached.
+     */
+    interface Loader {
+        /**
+         * Loads a task.
+         *
+         * @param ctx the task context
+         *
+         * @return a HobsonTask or null if the task doesn't exist
+         */
+        HobsonTask load(TaskContext ctx);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.security.HobsonUser;
+import org.jose4j.base64url.Base64Url;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of tokens that have been successfully authenticated and authorized, so that clients
+ * reconnecting in bulk don't each require a full token verification. Entries are keyed by a SHA-256 hash of the
+ * token (so raw tokens are never retained) and expire after a maximum time-to-live counted from when the token was
+ * verified, or earlier at a signed token's "exp" claim. The claims of an encrypted token (such as the hub's own JWE
+ * tokens) can't be read without decrypting it, so the time-to-live is the only bound for those and must be kept
+ * below the lifetime the hub issues tokens with.
+ *
+ * @author Dan Noguerol
+ */
+class TokenCache {
+    private static final Logger logger = LoggerFactory.getLogger(TokenCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int maxEntries;
+    private long maxTtlMillis;
+
+    TokenCache(int maxEntries, long maxTtlMillis) {
+        setLimits(maxEntries, maxTtlMillis);
+    }
+
+    /**
+     * Changes the cache limits. Existing entries are discarded if the limits change.
+     *
+     * @param maxEntries the maximum number of cached tokens (0 disables caching)
+     * @param maxTtlMillis the maximum time a token is cached for in milliseconds
+     */
+    synchronized void setLimits(int maxEntries, long maxTtlMillis) {
+        if (maxEntries != this.maxEntries || maxTtlMillis != this.maxTtlMillis) {
+            this.maxEntries = maxEntries;
+            this.maxTtlMillis = maxTtlMillis;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the user a token was previously verified for.
+     *
+     * @param token the token
+     *
+     * @return a HobsonUser or null if the token isn't cached or has expired
+     */
+    HobsonUser get(String token) {
+        String key = hash(token);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                if (System.currentTimeMillis() < e.expiresAt) {
+                    hits.incrementAndGet();
+                    return e.user;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a token that has been successfully authenticated and authorized.
+     *
+     * @param token the token
+     * @param user the user the token belongs to
+     */
+    void put(String token, HobsonUser user) {
+        long now = System.currentTimeMillis();
+        String key = hash(token);
+        Long exp = getExpiration(token);
+        synchronized (this) {
+            if (maxEntries > 0) {
+                long expiresAt = exp != null ? Math.min(now + maxTtlMillis, exp) : now + maxTtlMillis;
+                if (expiresAt > now) {
+                    entries.put(key, new Entry(user, expiresAt));
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the expiration time of a signed JWT (JWS) from its "exp" claim. The token's signature is not verified
+     * here; the claim is only used to bound the time the (already verified) token is cached for. The claims of an
+     * encrypted JWT (JWE), which has five segments rather than three, can't be read without decrypting it.
+     *
+     * @param token the token
+     *
+     * @return the expiration time in epoch milliseconds or null if the token has no readable "exp" claim
+     */
+    static Long getExpiration(String token) {
+        int start = token.indexOf('.');
+        int end = start > -1 ? token.indexOf('.', start + 1) : -1;
+        if (end > start && token.indexOf('.', end + 1) == -1) {
+            try {
+                JSONObject claims = new JSONObject(Base64Url.decodeToUtf8String(token.substring(start + 1, end)));
+                if (claims.has("exp")) {
+                    return claims.getLong("exp") * 1000;
+                }
+            } catch (Exception e) {
+                logger.trace("Unable to read token expiration", e);
+            }
+        }
+        return null;
+    }
+
+    static String hash(String token) {
+        try {
+            byte[] b = MessageDigest.getInstance("SHA-256").digest(token.getBytes(UTF8));
+            char[] c = new char[b.length * 2];
+            for (int i = 0; i < b.length; i++) {
+                c[i * 2] = HEX[(b[i] >> 4) & 0xF];
+                c[i * 2 + 1] = HEX[b[i] & 0xF];
+            }
+            return new String(c);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static class Entry {
+        final HobsonUser user;
+        final long expiresAt;
+
+        Entry(HobsonUser user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
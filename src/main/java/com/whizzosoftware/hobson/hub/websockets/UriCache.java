@@ -0,0 +1,107 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the JSON-escaped UTF-8 bytes of the REST API URI prefixes for hubs, plugins and devices so that event
+ * encoding doesn't need to rebuild them via string concatenation for every event.
+ *
+ * @author Dan Noguerol
+ */
+class UriCache {
+    /**
+     * Upper bound on the number of cached entries per map; lookups beyond this are computed but not cached.
+     */
+    static final int MAX_ENTRIES = 10000;
+
+    private final ConcurrentMap<String,byte[]> hubPrefixes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,ConcurrentMap<String,byte[]>> pluginPrefixes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,ConcurrentMap<String,ConcurrentMap<String,byte[]>>> devicePrefixes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the escaped bytes for "/api/v1/hubs/{hubId}".
+     *
+     * @param hubId the hub ID
+     *
+     * @return a byte array
+     */
+    byte[] getHubPrefix(String hubId) {
+        hubId = String.valueOf(hubId);
+        byte[] b = hubPrefixes.get(hubId);
+        if (b == null) {
+            b = JsonWriter.escape("/api/v1/hubs/" + hubId);
+            if (hubPrefixes.size() < MAX_ENTRIES) {
+                hubPrefixes.putIfAbsent(hubId, b);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns the escaped bytes for "/api/v1/hubs/{hubId}/plugins/local/{pluginId}".
+     *
+     * @param hubId the hub ID
+     * @param pluginId the plugin ID
+     *
+     * @return a byte array
+     */
+    byte[] getPluginPrefix(String hubId, String pluginId) {
+        hubId = String.valueOf(hubId);
+        pluginId = String.valueOf(pluginId);
+        ConcurrentMap<String,byte[]> m = getOrCreate(pluginPrefixes, hubId);
+        byte[] b = m.get(pluginId);
+        if (b == null) {
+            b = JsonWriter.escape("/api/v1/hubs/" + hubId + "/plugins/local/" + pluginId);
+            if (m.size() < MAX_ENTRIES) {
+                m.putIfAbsent(pluginId, b);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns the escaped bytes for "/api/v1/hubs/{hubId}/plugins/local/{pluginId}/devices/{deviceId}".
+     *
+     * @param hubId the hub ID
+     * @param pluginId the plugin ID
+     * @param deviceId the device ID
+     *
+     * @return a byte array
+     */
+    byte[] getDevicePrefix(String hubId, String pluginId, String deviceId) {
+        hubId = String.valueOf(hubId);
+        pluginId = String.valueOf(pluginId);
+        deviceId = String.valueOf(deviceId);
+        ConcurrentMap<String,byte[]> m = getOrCreate(getOrCreate(devicePrefixes, hubId), pluginId);
+        byte[] b = m.get(deviceId);
+        if (b == null) {
+            b = JsonWriter.escape("/api/v1/hubs/" + hubId + "/plugins/local/" + pluginId + "/devices/" + deviceId);
+            if (m.size() < MAX_ENTRIES) {
+                m.putIfAbsent(deviceId, b);
+            }
+        }
+        return b;
+    }
+
+    private <V> ConcurrentMap<String,V> getOrCreate(ConcurrentMap<String,ConcurrentMap<String,V>> map, String key) {
+        ConcurrentMap<String,V> m = map.get(key);
+        if (m == null) {
+            m = new ConcurrentHashMap<>();
+            ConcurrentMap<String,V> existing = map.putIfAbsent(key, m);
+            if (existing != null) {
+                m = existing;
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A lock-free, keyed latest-value store for device variable updates. Updates offered during a conflation window
+ * are merged per variable (hub/plugin/device/name): the new value is replaced by each subsequent update while the
+ * old value from the first update in the window is retained. At the end of the window, the merged updates are
+ * drained and sent as a single event.
+ *
+ * @author Dan Noguerol
+ */
+class VariableConflator {
+    private final long windowMillis;
+    private final ConcurrentMap<Key,PendingUpdate> pending = new ConcurrentHashMap<>();
+
+    VariableConflator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Records a variable update. This is safe to call concurrently with other offers and with drain().
+     *
+     * @param eventId the ID of the event the update belongs to
+     * @param hubId the hub ID
+     * @param pluginId the plugin ID
+     * @param deviceId the device ID
+     * @param name the variable name
+     * @param oldValue the variable's previous value
+     * @param newValue the variable's new value
+     */
+    void offer(String eventId, String hubId, String pluginId, String deviceId, String name, Object oldValue, Object newValue) {
+        Key key = new Key(hubId, pluginId, deviceId, name);
+        for (;;) {
+            PendingUpdate cur = pending.get(key);
+            if (cur == null) {
+                if (pending.putIfAbsent(key, new PendingUpdate(eventId, key, oldValue, newValue)) == null) {
+                    return;
+                }
+            } else if (pending.replace(key, cur, new PendingUpdate(eventId, key, cur.oldValue, newValue))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns all pending updates.
+     *
+     * @return a List of updates (empty if nothing is pending)
+     */
+    List<PendingUpdate> drain() {
+        List<PendingUpdate> results = new ArrayList<>(pending.size());
+        for (Key k : pending.keySet()) {
+            PendingUpdate pu = pending.remove(k);
+            if (pu != null) {
+                results.add(pu);
+            }
+        }
+        return results;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    static class PendingUpdate {
+        final String eventId;
+        final Key key;
+        final Object oldValue;
+        final Object newValue;
+
+        PendingUpdate(String eventId, Key key, Object oldValue, Object newValue) {
+            this.eventId = eventId;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    static class Key {
+        final String hubId;
+        final String pluginId;
+        final String deviceId;
+        final String name;
+        private final int hash;
+
+        Key(String hubId, String pluginId, String deviceId, String name) {
+            this.hubId = hubId;
+            this.pluginId = pluginId;
+            this.deviceId = deviceId;
+            this.name = name;
+            int h = hubId != null ? hubId.hashCode() : 0;
+            h = 31 * h + (pluginId != null ? pluginId.hashCode() : 0);
+            h = 31 * h + (deviceId != null ? deviceId.hashCode() : 0);
+            h = 31 * h + (name != null ? name.hashCode() : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && eq(hubId, k.hubId) && eq(pluginId, k.pluginId) && eq(deviceId, k.deviceId) && eq(name, k.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean eq(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
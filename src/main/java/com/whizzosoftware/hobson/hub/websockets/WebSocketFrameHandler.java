@@ -9,21 +9,61 @@
 */
 package com.whizzosoftware.hobson.hub.websockets;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles WebSocket connection lifecycle and client requests. Clients can send the following text frames (regardless
+ * of the wire format they receive events in):
+ *
+ * {"action":"subscribe","subscriptionId":"s1","events":["..."],"hubId":"...","pluginId":"...","deviceId":"...","variable":"..."}
+ * {"action":"unsubscribe","subscriptionId":"s1"}
+ * {"action":"options","batch":true,"batchInterval":10}
+ * {"action":"snapshot"}
+ *
+ * All filter fields of a subscription are optional. A client that has never subscribed receives all events. A client
+ * that enables batching receives JSON arrays of events rather than individual event objects.
+ *
+ * A client that connects with a "lastSeq" parameter is first sent the events it missed since that sequence number,
+ * or a "resyncRequired" message if they are no longer available. Otherwise, new clients are sent a snapshot of the
+ * current state. A snapshot request returns the state that matches the client's subscriptions.
+ *
+ * @author Dan Noguerol
+ */
 class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketFrameHandler.class);
 
     private final ChannelGroup clientChannels;
+    private final SubscriptionRegistry subscriptions;
+    private final EventEncoder encoder;
+    private final WebSocketsConfig config;
+    private final ReplayBuffer replay;
+    private final StateSnapshot state;
+    private final Metrics metrics;
 
-    WebSocketFrameHandler(ChannelGroup clientChannels) {
+    WebSocketFrameHandler(ChannelGroup clientChannels, SubscriptionRegistry subscriptions, EventEncoder encoder, WebSocketsConfig config, ReplayBuffer replay, StateSnapshot state, Metrics metrics) {
         this.clientChannels = clientChannels;
+        this.subscriptions = subscriptions;
+        this.encoder = encoder;
+        this.config = config;
+        this.replay = replay;
+        this.state = state;
+        this.metrics = metrics;
     }
 
     @Override
@@ -31,20 +71,170 @@ class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocketFrame>
         super.userEventTriggered(ctx, evt);
 
         if (WebSocketServerProtocolHandler.ServerHandshakeStateEvent.HANDSHAKE_COMPLETE.equals(evt)) {
+            Long start = ctx.channel().attr(MetricsEndpoint.HANDSHAKE_START_KEY).getAndRemove();
+            if (start != null) {
+                metrics.recordHandshake(System.nanoTime() - start);
+            }
+            ClientConnection conn = new ClientConnection(ctx.channel(), config.getMaxQueuedFrames(), config.getOverflowPolicy(), metrics);
+            WireFormat format = ctx.channel().attr(WireFormat.KEY).getAndRemove();
+            if (format != null) {
+                conn.setFormat(format, format.isBinary() ? encoder.getInterns() : null);
+            }
+            Integer maxCompressedSize = ctx.channel().attr(PerMessageDeflateHandler.MAX_COMPRESSED_SIZE_KEY).getAndRemove();
+            if (maxCompressedSize != null && config.getCompressionLevel() > 0) {
+                conn.setCompression(MessageCompressor.forLevel(config.getCompressionLevel()), maxCompressedSize);
+            }
+            ctx.channel().attr(ClientConnection.KEY).set(conn);
+            subscriptions.addChannel(ctx.channel());
             clientChannels.add(ctx.channel());
-            logger.debug("New WebSocket connection; {} clients currently connected", clientChannels.size());
+            logger.debug("New {} WebSocket connection; {} clients currently connected", conn.getFormat(), clientChannels.size());
+
+            // the channel must be registered before the replay so that no event falls between the two
+            Long lastSeq = ctx.channel().attr(ResumeParameterHandler.LAST_SEQ_KEY).getAndRemove();
+            if ((lastSeq == null || !resume(conn, lastSeq)) && config.isSnapshotOnConnect()) {
+                sendSnapshot(conn, null);
+            }
+        }
+    }
+
+    /**
+     * Sends a reconnecting client the events it missed that match its current subscriptions (all of them if it
+     * hasn't subscribed yet).
+     *
+     * @param conn the client connection
+     * @param lastSeq the sequence number of the last event the client received
+     *
+     * @return false if the missed events are no longer available
+     */
+    private boolean resume(ClientConnection conn, long lastSeq) {
+        List<ByteBuf> missed = new ArrayList<>();
+        long seq = replay.getEventsAfter(lastSeq, conn.getFormat(), encoder, subscriptions.getSubscriptions(conn.getChannel()), missed);
+        if (seq > -1) {
+            logger.debug("Replaying {} events after sequence {} to {}", missed.size(), lastSeq, conn.getChannel().remoteAddress());
+            conn.setResumeSequence(seq);
+            for (ByteBuf b : missed) {
+                conn.send(b, null);
+            }
+            return true;
+        } else {
+            logger.debug("Events after sequence {} no longer available; {} must resync", lastSeq, conn.getChannel().remoteAddress());
+            Map<String,Object> props = new HashMap<>();
+            props.put("lastSeq", lastSeq);
+            props.put("seq", replay.getSequence());
+            conn.setResumeSequence(replay.getSequence());
+            conn.send(encoder.encodeMessage("resyncRequired", props, conn.getFormat()), null);
+            return false;
         }
     }
 
+    /**
+     * Sends the client a snapshot of the current state. Live events that are already reflected in the snapshot are
+     * discarded.
+     *
+     * @param conn the client connection
+     * @param filter the subscriptions to filter the snapshot with (or null if the client has never subscribed)
+     */
+    private void sendSnapshot(ClientConnection conn, Collection<Subscription> filter) {
+        // events are applied to the state while holding the replay buffer's monitor, so holding it here guarantees
+        // that the snapshot reflects exactly the events up to its sequence number
+        long seq;
+        ByteBuf payload;
+        synchronized (replay) {
+            seq = replay.getSequence();
+            payload = encoder.encodeSnapshot(state, filter, seq, conn.getFormat());
+        }
+        conn.setResumeSequence(seq);
+        conn.send(payload, null);
+    }
+
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
         clientChannels.remove(ctx.channel());
+        subscriptions.removeChannel(ctx.channel());
+        ClientConnection conn = ClientConnection.get(ctx.channel());
+        if (conn != null) {
+            conn.close();
+        }
         logger.debug("Closing WebSocket connection; {} clients connected", clientChannels.size());
     }
 
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ClientConnection conn = ClientConnection.get(ctx.channel());
+        if (conn != null) {
+            conn.setCloseReason(ClientConnection.CLOSED_ERROR);
+        }
+        super.exceptionCaught(ctx, cause);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        ClientConnection conn = ClientConnection.get(ctx.channel());
+        if (conn != null && ctx.channel().isWritable()) {
+            conn.drain();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
-        // NO-OP (for now)
+        if (frame instanceof TextWebSocketFrame) {
+            String text = ((TextWebSocketFrame)frame).text();
+            logger.trace("Received client request: {}", text);
+            try {
+                JSONObject json = new JSONObject(text);
+                String action = json.optString("action", null);
+                if ("subscribe".equals(action)) {
+                    Subscription sub = Subscription.fromJSON(ctx.channel(), json);
+                    subscriptions.subscribe(sub);
+                    logger.debug("Added subscription: {}", sub);
+                    sendReply(ctx, "subscribed", sub.getId(), null);
+                } else if ("unsubscribe".equals(action)) {
+                    String id = json.optString("subscriptionId", null);
+                    if (subscriptions.unsubscribe(ctx.channel(), id)) {
+                        sendReply(ctx, "unsubscribed", id, null);
+                    } else {
+                        sendReply(ctx, "error", id, "Unknown subscription");
+                    }
+                } else if ("options".equals(action)) {
+                    ClientConnection conn = ClientConnection.get(ctx.channel());
+                    if (conn != null) {
+                        conn.setBatching(json.optBoolean("batch", conn.isBatching()), json.optLong("batchInterval", conn.getBatchIntervalMillis()));
+                        Map<String,Object> props = new HashMap<>();
+                        props.put("batch", conn.isBatching());
+                        props.put("batchInterval", conn.getBatchIntervalMillis());
+                        conn.send(encoder.encodeMessage("options", props, conn.getFormat()), null);
+                    }
+                } else if ("resume".equals(action)) {
+                    ClientConnection conn = ClientConnection.get(ctx.channel());
+                    if (conn != null) {
+                        resume(conn, json.getLong("lastSeq"));
+                    }
+                } else if ("snapshot".equals(action)) {
+                    ClientConnection conn = ClientConnection.get(ctx.channel());
+                    if (conn != null) {
+                        sendSnapshot(conn, subscriptions.getSubscriptions(ctx.channel()));
+                    }
+                } else {
+                    sendReply(ctx, "error", null, "Unknown action: " + action);
+                }
+            } catch (JSONException | IllegalArgumentException | IllegalStateException e) {
+                logger.debug("Invalid client request", e);
+                sendReply(ctx, "error", null, e.getMessage());
+            }
+        }
+    }
+
+    private void sendReply(ChannelHandlerContext ctx, String id, String subscriptionId, String message) {
+        Map<String,Object> props = new HashMap<>();
+        props.put("subscriptionId", subscriptionId);
+        props.put("message", message);
+        ClientConnection conn = ClientConnection.get(ctx.channel());
+        if (conn != null) {
+            conn.send(encoder.encodeMessage(id, props, conn.getFormat()), null);
+        } else {
+            ctx.writeAndFlush(new TextWebSocketFrame(encoder.encodeMessage(id, props, WireFormat.JSON)));
+        }
     }
 }
@@ -0,0 +1,285 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.logging.LogLevel;
+import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The WebSocket server's listening sockets and event loops. The transport and socket options are taken from the
+ * plugin configuration when the server starts; if they change, the server can be restarted in place.
+ *
+ * The native epoll transport is used when it is enabled and available. It is loaded reflectively so that the plugin
+ * has no hard dependency on it and falls back to NIO on other platforms. With epoll, SO_REUSEPORT allows one
+ * listening socket per acceptor thread so that accepting connections is spread across threads by the kernel.
+ *
+ * @author Dan Noguerol
+ */
+class WebSocketServer {
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketServer.class);
+
+    private static final String EPOLL_PACKAGE = "io.netty.channel.epoll.";
+
+    private final WebSocketsConfig config;
+    private final ChannelHandler childHandler;
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
+    private Settings settings;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private boolean nativeTransport;
+
+    WebSocketServer(WebSocketsConfig config, ChannelHandler childHandler) {
+        this.config = config;
+        this.childHandler = childHandler;
+    }
+
+    /**
+     * Indicates whether the server has at least one open listening socket.
+     *
+     * @return a boolean
+     */
+    boolean isOpen() {
+        for (Channel c : serverChannels) {
+            if (c.isOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether the running server uses the native epoll transport rather than NIO.
+     *
+     * @return a boolean
+     */
+    synchronized boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Starts the server using the current configuration.
+     *
+     * @return true if all listening sockets were bound
+     */
+    synchronized boolean start() {
+        if (settings != null) {
+            return isOpen();
+        }
+
+        Settings s = new Settings(config);
+        nativeTransport = s.nativeTransport && isEpollAvailable();
+        if (s.nativeTransport && !nativeTransport) {
+            logger.info("Native transport is not available; using NIO (install the netty-transport-native-epoll bundle to enable it)");
+        }
+        int acceptors = 1;
+        if (s.reusePort) {
+            if (nativeTransport) {
+                acceptors = s.bossThreads;
+            } else {
+                logger.info("Port reuse requires the native transport; using a single listening socket");
+            }
+        }
+
+        try {
+            bossGroup = newEventLoopGroup(nativeTransport, s.bossThreads, "hobson-websockets-boss");
+            workerGroup = newEventLoopGroup(nativeTransport, s.workerThreads, "hobson-websockets-worker");
+            settings = s;
+        } catch (Exception e) {
+            logger.error("Unable to create event loops for the WebSocket server", e);
+            shutdownGroups();
+            return false;
+        }
+
+        ByteBufAllocator alloc = s.pooledAllocator ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+            .channel(getServerChannelClass(nativeTransport))
+            .option(ChannelOption.ALLOCATOR, alloc)
+            .childOption(ChannelOption.ALLOCATOR, alloc)
+            .childOption(ChannelOption.TCP_NODELAY, s.tcpNoDelay)
+            .childHandler(childHandler);
+        if (s.sendBufferSize > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, s.sendBufferSize);
+        }
+        if (s.receiveBufferSize > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, s.receiveBufferSize);
+        }
+        if (acceptors > 1) {
+            b.option(getReusePortOption(), true);
+        }
+        if (s.serverLogging) {
+            b.handler(new LoggingHandler(LogLevel.INFO));
+        }
+
+        // each bind registers a listening socket with the next acceptor thread
+        List<ChannelFuture> futures = new ArrayList<>();
+        for (int i = 0; i < acceptors; i++) {
+            futures.add(b.bind(s.port));
+        }
+        boolean success = true;
+        for (ChannelFuture f : futures) {
+            f.awaitUninterruptibly();
+            if (f.isSuccess()) {
+                serverChannels.add(f.channel());
+            } else {
+                logger.error("Unable to bind WebSocket server to port " + s.port, f.cause());
+                success = false;
+            }
+        }
+
+        if (success) {
+            logger.debug("WebSocket server started at port {} using {} transport with {} listening socket(s)", s.port, nativeTransport ? "epoll" : "NIO", acceptors);
+        }
+        return success;
+    }
+
+    /**
+     * Closes the listening sockets and all client connections.
+     */
+    synchronized void stop() {
+        for (Channel c : serverChannels) {
+            c.close().awaitUninterruptibly();
+        }
+        serverChannels.clear();
+        shutdownGroups();
+        settings = null;
+    }
+
+    /**
+     * Restarts the server if any of its settings changed since it was started. Client connections are closed by
+     * the restart.
+     *
+     * @return true if the server was restarted
+     */
+    synchronized boolean restartIfChanged() {
+        if (settings != null && !settings.equals(new Settings(config))) {
+            logger.info("WebSocket server settings changed; restarting");
+            stop();
+            start();
+            return true;
+        }
+        return false;
+    }
+
+    private void shutdownGroups() {
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+            bossGroup = null;
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+            workerGroup = null;
+        }
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return (Boolean)Class.forName(EPOLL_PACKAGE + "Epoll").getMethod("isAvailable").invoke(null);
+        } catch (Throwable t) {
+            logger.trace("Native transport is not available", t);
+            return false;
+        }
+    }
+
+    private static EventLoopGroup newEventLoopGroup(boolean nativeTransport, int threads, String name) throws Exception {
+        ThreadFactory tf = new DefaultThreadFactory(name);
+        if (nativeTransport) {
+            return (EventLoopGroup)Class.forName(EPOLL_PACKAGE + "EpollEventLoopGroup").getConstructor(int.class, ThreadFactory.class).newInstance(threads, tf);
+        }
+        return new NioEventLoopGroup(threads, tf);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends ServerChannel> getServerChannelClass(boolean nativeTransport) {
+        if (nativeTransport) {
+            try {
+                return (Class<? extends ServerChannel>)Class.forName(EPOLL_PACKAGE + "EpollServerSocketChannel");
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Native transport is not available", e);
+            }
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelOption<Boolean> getReusePortOption() {
+        try {
+            return (ChannelOption<Boolean>)Class.forName(EPOLL_PACKAGE + "EpollChannelOption").getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Native transport is not available", e);
+        }
+    }
+
+    /**
+     * The settings that require a restart to take effect.
+     */
+    private static class Settings {
+        final int port;
+        final int bossThreads;
+        final int workerThreads;
+        final boolean nativeTransport;
+        final boolean reusePort;
+        final boolean tcpNoDelay;
+        final int sendBufferSize;
+        final int receiveBufferSize;
+        final boolean pooledAllocator;
+        final boolean serverLogging;
+
+        Settings(WebSocketsConfig config) {
+            port = config.getPort();
+            bossThreads = config.getBossThreads();
+            workerThreads = config.getWorkerThreads();
+            nativeTransport = config.isNativeTransport();
+            reusePort = config.isReusePort();
+            tcpNoDelay = config.isTcpNoDelay();
+            sendBufferSize = config.getSendBufferSize();
+            receiveBufferSize = config.getReceiveBufferSize();
+            pooledAllocator = config.isPooledAllocator();
+            serverLogging = config.isServerLogging();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings s = (Settings)o;
+            return port == s.port && bossThreads == s.bossThreads && workerThreads == s.workerThreads &&
+                nativeTransport == s.nativeTransport && reusePort == s.reusePort && tcpNoDelay == s.tcpNoDelay &&
+                sendBufferSize == s.sendBufferSize && receiveBufferSize == s.receiveBufferSize &&
+                pooledAllocator == s.pooledAllocator && serverLogging == s.serverLogging;
+        }
+
+        @Override
+        public int hashCode() {
+            return port;
+        }
+    }
+}
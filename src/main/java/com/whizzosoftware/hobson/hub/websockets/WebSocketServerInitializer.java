@@ -20,22 +20,53 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 
 class WebSocketServerInitializer extends ChannelInitializer<SocketChannel> {
     private static final String WEBSOCKET_PATH = "/websockets";
+    private static final String METRICS_PATH = "/metrics";
 
     private final ChannelGroup clientChannels;
     private final AccessManager accessManager;
+    private final SubscriptionRegistry subscriptions;
+    private final EventEncoder encoder;
+    private final WebSocketsConfig config;
+    private final ReplayBuffer replay;
+    private final StateSnapshot state;
+    private final TokenCache tokenCache;
+    private final ConnectionLimiter connectionLimiter;
+    private final Metrics metrics;
 
-    WebSocketServerInitializer(ChannelGroup clientChannels, AccessManager accessManager) {
+    WebSocketServerInitializer(ChannelGroup clientChannels, AccessManager accessManager, TokenCache tokenCache, SubscriptionRegistry subscriptions, EventEncoder encoder, WebSocketsConfig config, ReplayBuffer replay, StateSnapshot state, Metrics metrics) {
         this.clientChannels = clientChannels;
         this.accessManager = accessManager;
+        this.tokenCache = tokenCache;
+        this.connectionLimiter = new ConnectionLimiter(config);
+        this.subscriptions = subscriptions;
+        this.encoder = encoder;
+        this.config = config;
+        this.replay = replay;
+        this.state = state;
+        this.metrics = metrics;
+    }
+
+    ConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
     }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
+        config.applyWaterMarks(ch.config());
+
         ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast(connectionLimiter);
+        pipeline.addLast(new HeartbeatHandler(config, metrics));
         pipeline.addLast(new HttpServerCodec());
+        pipeline.addLast(new MetricsEndpoint(METRICS_PATH, metrics, config, accessManager, tokenCache));
+        pipeline.addLast(new HandshakeGuard(WEBSOCKET_PATH));
         pipeline.addLast(new HttpObjectAggregator(65536));
-        pipeline.addLast(new Authorizer(accessManager));
-        pipeline.addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true));
-        pipeline.addLast(new WebSocketFrameHandler(clientChannels));
+        pipeline.addLast(new ResumeParameterHandler(WEBSOCKET_PATH));
+        pipeline.addLast(new Authorizer(accessManager, tokenCache, metrics));
+        pipeline.addLast(new PerMessageDeflateHandler(config));
+        pipeline.addLast(new SubprotocolDetector());
+        pipeline.addLast(new ClientCloseDetector());
+        pipeline.addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, WireFormat.SUBPROTOCOLS, true));
+        pipeline.addLast(new WebSocketFrameHandler(clientChannels, subscriptions, encoder, config, replay, state, metrics));
     }
 }
@@ -0,0 +1,428 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.TypedProperty;
+import io.netty.channel.ChannelConfig;
+
+/**
+ * The plugin's tunable settings. Values are read from the plugin configuration and can be updated at runtime;
+ * settings that apply per-connection take effect for new connections.
+ *
+ * @author Dan Noguerol
+ */
+class WebSocketsConfig {
+    static final String PROP_WRITE_BUFFER_HIGH = "writeBufferHighWaterMark";
+    static final String PROP_WRITE_BUFFER_LOW = "writeBufferLowWaterMark";
+    static final String PROP_MAX_QUEUED_FRAMES = "maxQueuedFrames";
+    static final String PROP_OVERFLOW_POLICY = "overflowPolicy";
+    static final String PROP_CONFLATION_WINDOW = "conflationWindow";
+    static final String PROP_DISPATCH_QUEUE_SIZE = "dispatchQueueSize";
+    static final String PROP_DISPATCH_THREADS = "dispatchThreads";
+    static final String PROP_REPLAY_BUFFER_SIZE = "replayBufferSize";
+    static final String PROP_REPLAY_BUFFER_AGE = "replayBufferAge";
+    static final String PROP_SNAPSHOT_ON_CONNECT = "snapshotOnConnect";
+    static final String PROP_TOKEN_CACHE_SIZE = "tokenCacheSize";
+    static final String PROP_TOKEN_CACHE_TTL = "tokenCacheTtl";
+    static final String PROP_MAX_CONNECTIONS = "maxConnections";
+    static final String PROP_MAX_CONNECTIONS_PER_ADDRESS = "maxConnectionsPerAddress";
+    static final String PROP_MAX_CONNECT_RATE = "maxConnectRate";
+    static final String PROP_MAX_CONNECT_RATE_PER_ADDRESS = "maxConnectRatePerAddress";
+    static final String PROP_COMPRESSION_LEVEL = "compressionLevel";
+    static final String PROP_COMPRESSION_WINDOW_BITS = "compressionWindowBits";
+    static final String PROP_PORT = "port";
+    static final String PROP_BOSS_THREADS = "bossThreads";
+    static final String PROP_WORKER_THREADS = "workerThreads";
+    static final String PROP_NATIVE_TRANSPORT = "nativeTransport";
+    static final String PROP_REUSE_PORT = "reusePort";
+    static final String PROP_TCP_NO_DELAY = "tcpNoDelay";
+    static final String PROP_SEND_BUFFER_SIZE = "sendBufferSize";
+    static final String PROP_RECEIVE_BUFFER_SIZE = "receiveBufferSize";
+    static final String PROP_POOLED_ALLOCATOR = "pooledAllocator";
+    static final String PROP_SERVER_LOGGING = "serverLogging";
+    static final String PROP_TASK_CACHE_SIZE = "taskCacheSize";
+    static final String PROP_METRICS_ENABLED = "metricsEnabled";
+    static final String PROP_PING_INTERVAL = "pingInterval";
+    static final String PROP_PONG_TIMEOUT = "pongTimeout";
+    static final String PROP_READ_IDLE_TIMEOUT = "readIdleTimeout";
+    static final String PROP_WRITE_IDLE_TIMEOUT = "writeIdleTimeout";
+
+    static final int DEFAULT_PORT = 8184;
+
+    private volatile int writeBufferHighWaterMark = 64 * 1024;
+    private volatile int writeBufferLowWaterMark = 32 * 1024;
+    private volatile int maxQueuedFrames = 256;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile long conflationWindow = 0;
+    private volatile int dispatchQueueSize = 8192;
+    private volatile int dispatchThreads = 1;
+    private volatile int replayBufferSize = 1024;
+    private volatile long replayBufferAge = 300;
+    private volatile boolean snapshotOnConnect = true;
+    private volatile int tokenCacheSize = 1024;
+    private volatile long tokenCacheTtl = 300;
+    private volatile int maxConnections = 1000;
+    private volatile int maxConnectionsPerAddress = 100;
+    private volatile int maxConnectRate = 200;
+    private volatile int maxConnectRatePerAddress = 20;
+    private volatile int compressionLevel = 6;
+    private volatile int compressionWindowBits = 15;
+    private volatile int port = DEFAULT_PORT;
+    private volatile int bossThreads = 1;
+    private volatile int workerThreads = 0;
+    private volatile boolean nativeTransport = true;
+    private volatile boolean reusePort = false;
+    private volatile boolean tcpNoDelay = true;
+    private volatile int sendBufferSize = 0;
+    private volatile int receiveBufferSize = 0;
+    private volatile boolean pooledAllocator = true;
+    private volatile boolean serverLogging = false;
+    private volatile int taskCacheSize = 1024;
+    private volatile boolean metricsEnabled = false;
+    private volatile long pingInterval = 30;
+    private volatile long pongTimeout = 10;
+    private volatile long readIdleTimeout = 0;
+    private volatile long writeIdleTimeout = 60;
+
+    /**
+     * Returns the configuration properties the plugin exposes.
+     *
+     * @return an array of TypedProperty
+     */
+    static TypedProperty[] getPropertyTypes() {
+        return new TypedProperty[] {
+            new TypedProperty.Builder(PROP_WRITE_BUFFER_HIGH, "Write buffer high water mark", "The number of pending outbound bytes at which a client connection stops accepting frames and starts queueing them", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_WRITE_BUFFER_LOW, "Write buffer low water mark", "The number of pending outbound bytes at which a client connection resumes accepting frames", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_QUEUED_FRAMES, "Max queued frames", "The maximum number of frames queued for a slow client connection", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_OVERFLOW_POLICY, "Overflow policy", "What to do when a slow client's queue is full (DROP_OLDEST, DROP_NEWEST, COALESCE or DISCONNECT)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_CONFLATION_WINDOW, "Conflation window", "If greater than zero, device variable updates are merged per variable and sent at most once per this many milliseconds", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_DISPATCH_QUEUE_SIZE, "Dispatch queue size", "The maximum number of events waiting to be sent to clients before new events are dropped (applied on restart)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_DISPATCH_THREADS, "Dispatch threads", "The number of threads that encode and send events; more than one does not preserve event order (applied on restart)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_REPLAY_BUFFER_SIZE, "Replay buffer size", "The number of recent events retained for clients that reconnect (0 disables replay)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_REPLAY_BUFFER_AGE, "Replay buffer age", "The maximum age in seconds of events retained for clients that reconnect", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_SNAPSHOT_ON_CONNECT, "Snapshot on connect", "Whether new clients are sent a snapshot of the current device, plugin, presence and task state", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_TOKEN_CACHE_SIZE, "Token cache size", "The number of verified access tokens cached to speed up client reconnects (0 disables caching)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_TOKEN_CACHE_TTL, "Token cache TTL", "The maximum time in seconds a verified access token is cached for", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_CONNECTIONS, "Max connections", "The maximum number of concurrent connections (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_CONNECTIONS_PER_ADDRESS, "Max connections per address", "The maximum number of concurrent connections from a single IP address (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_CONNECT_RATE, "Max connect rate", "The maximum number of new connections accepted per second (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_MAX_CONNECT_RATE_PER_ADDRESS, "Max connect rate per address", "The maximum number of new connections accepted per second from a single IP address (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_COMPRESSION_LEVEL, "Compression level", "The permessage-deflate compression level from 1 (fastest) to 9 (smallest); 0 disables compression", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_COMPRESSION_WINDOW_BITS, "Compression window bits", "The permessage-deflate window size from 8 to 15 bits; messages larger than the window are sent uncompressed", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_PORT, "Port", "The TCP port the WebSocket server listens on", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_BOSS_THREADS, "Acceptor threads", "The number of threads accepting connections; more than one requires port reuse", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_WORKER_THREADS, "Worker threads", "The number of threads serving connections (0 for twice the number of processors)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_NATIVE_TRANSPORT, "Native transport", "Whether to use the native epoll transport when it is available", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_REUSE_PORT, "Port reuse", "Whether to bind one listening socket per acceptor thread with SO_REUSEPORT (requires the native transport)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_TCP_NO_DELAY, "TCP no delay", "Whether to disable Nagle's algorithm on client connections", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_SEND_BUFFER_SIZE, "Socket send buffer", "The socket send buffer size in bytes (0 for the system default)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_RECEIVE_BUFFER_SIZE, "Socket receive buffer", "The socket receive buffer size in bytes (0 for the system default)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_POOLED_ALLOCATOR, "Pooled buffers", "Whether client connections use pooled buffers", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_SERVER_LOGGING, "Server logging", "Whether to log the listening socket's activity (binds and accepted connections)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_TASK_CACHE_SIZE, "Task cache size", "The number of tasks cached to add names and descriptions to task events (0 disables caching)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_METRICS_ENABLED, "Metrics endpoint", "Whether metrics are served in the Prometheus text format at /metrics (requests require an access token)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_PING_INTERVAL, "Ping interval", "The number of seconds a client can be silent before it is sent a ping (0 disables pings)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_PONG_TIMEOUT, "Pong timeout", "The number of seconds a client has to answer a ping before its connection is closed", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_READ_IDLE_TIMEOUT, "Read idle timeout", "The number of seconds after which a connection that has sent nothing is closed (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_WRITE_IDLE_TIMEOUT, "Write idle timeout", "The number of seconds after which a connection whose pending writes make no progress is closed (0 for no limit)", TypedProperty.Type.NUMBER).build(),
+        };
+    }
+
+    /**
+     * Updates the settings from a plugin configuration. Missing or invalid values revert to their defaults.
+     *
+     * @param config the plugin configuration (may be null)
+     */
+    void update(PropertyContainer config) {
+        int high = getInt(config, PROP_WRITE_BUFFER_HIGH, 64 * 1024, 1024);
+        int low = getInt(config, PROP_WRITE_BUFFER_LOW, 32 * 1024, 0);
+        writeBufferHighWaterMark = high;
+        writeBufferLowWaterMark = Math.min(low, high);
+        maxQueuedFrames = getInt(config, PROP_MAX_QUEUED_FRAMES, 256, 1);
+        overflowPolicy = OverflowPolicy.parse(getString(config, PROP_OVERFLOW_POLICY), OverflowPolicy.DROP_OLDEST);
+        conflationWindow = getLong(config, PROP_CONFLATION_WINDOW, 0, 0);
+        dispatchQueueSize = getInt(config, PROP_DISPATCH_QUEUE_SIZE, 8192, 16);
+        dispatchThreads = Math.min(getInt(config, PROP_DISPATCH_THREADS, 1, 1), 64);
+        replayBufferSize = getInt(config, PROP_REPLAY_BUFFER_SIZE, 1024, 0);
+        replayBufferAge = getLong(config, PROP_REPLAY_BUFFER_AGE, 300, 1);
+        snapshotOnConnect = getBoolean(config, PROP_SNAPSHOT_ON_CONNECT, true);
+        tokenCacheSize = getInt(config, PROP_TOKEN_CACHE_SIZE, 1024, 0);
+        tokenCacheTtl = getLong(config, PROP_TOKEN_CACHE_TTL, 300, 1);
+        maxConnections = getInt(config, PROP_MAX_CONNECTIONS, 1000, 0);
+        maxConnectionsPerAddress = getInt(config, PROP_MAX_CONNECTIONS_PER_ADDRESS, 100, 0);
+        maxConnectRate = getInt(config, PROP_MAX_CONNECT_RATE, 200, 0);
+        maxConnectRatePerAddress = getInt(config, PROP_MAX_CONNECT_RATE_PER_ADDRESS, 20, 0);
+        compressionLevel = Math.min(getInt(config, PROP_COMPRESSION_LEVEL, 6, 0), 9);
+        compressionWindowBits = Math.min(getInt(config, PROP_COMPRESSION_WINDOW_BITS, 15, 8), 15);
+        port = getInt(config, PROP_PORT, DEFAULT_PORT, 1);
+        if (port > 65535) {
+            port = DEFAULT_PORT;
+        }
+        bossThreads = Math.min(getInt(config, PROP_BOSS_THREADS, 1, 1), 64);
+        workerThreads = Math.min(getInt(config, PROP_WORKER_THREADS, 0, 0), 1024);
+        nativeTransport = getBoolean(config, PROP_NATIVE_TRANSPORT, true);
+        reusePort = getBoolean(config, PROP_REUSE_PORT, false);
+        tcpNoDelay = getBoolean(config, PROP_TCP_NO_DELAY, true);
+        sendBufferSize = getInt(config, PROP_SEND_BUFFER_SIZE, 0, 0);
+        receiveBufferSize = getInt(config, PROP_RECEIVE_BUFFER_SIZE, 0, 0);
+        pooledAllocator = getBoolean(config, PROP_POOLED_ALLOCATOR, true);
+        serverLogging = getBoolean(config, PROP_SERVER_LOGGING, false);
+        taskCacheSize = getInt(config, PROP_TASK_CACHE_SIZE, 1024, 0);
+        metricsEnabled = getBoolean(config, PROP_METRICS_ENABLED, false);
+        pingInterval = getLong(config, PROP_PING_INTERVAL, 30, 0);
+        pongTimeout = getLong(config, PROP_PONG_TIMEOUT, 10, 1);
+        readIdleTimeout = getLong(config, PROP_READ_IDLE_TIMEOUT, 0, 0);
+        writeIdleTimeout = getLong(config, PROP_WRITE_IDLE_TIMEOUT, 60, 0);
+    }
+
+    int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    long getConflationWindow() {
+        return conflationWindow;
+    }
+
+    int getDispatchQueueSize() {
+        return dispatchQueueSize;
+    }
+
+    int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    int getReplayBufferSize() {
+        return replayBufferSize;
+    }
+
+    /**
+     * Returns the maximum age of events in the replay buffer.
+     *
+     * @return the age in seconds
+     */
+    long getReplayBufferAge() {
+        return replayBufferAge;
+    }
+
+    boolean isSnapshotOnConnect() {
+        return snapshotOnConnect;
+    }
+
+    int getTokenCacheSize() {
+        return tokenCacheSize;
+    }
+
+    /**
+     * Returns the maximum time a verified token is cached for.
+     *
+     * @return the time in seconds
+     */
+    long getTokenCacheTtl() {
+        return tokenCacheTtl;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * Returns the maximum number of new connections accepted per second.
+     *
+     * @return an int (0 for no limit)
+     */
+    int getMaxConnectRate() {
+        return maxConnectRate;
+    }
+
+    int getMaxConnectRatePerAddress() {
+        return maxConnectRatePerAddress;
+    }
+
+    /**
+     * Returns the permessage-deflate compression level.
+     *
+     * @return a level from 1 to 9 (or 0 if compression is disabled)
+     */
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    int getCompressionWindowBits() {
+        return compressionWindowBits;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    int getBossThreads() {
+        return bossThreads;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return an int (0 for Netty's default)
+     */
+    int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    boolean isReusePort() {
+        return reusePort;
+    }
+
+    boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns the socket send buffer size.
+     *
+     * @return the size in bytes (0 for the system default)
+     */
+    int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    boolean isPooledAllocator() {
+        return pooledAllocator;
+    }
+
+    boolean isServerLogging() {
+        return serverLogging;
+    }
+
+    int getTaskCacheSize() {
+        return taskCacheSize;
+    }
+
+    boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Returns how long a client can be silent before it is pinged.
+     *
+     * @return the interval in seconds (0 if pings are disabled)
+     */
+    long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Returns how long a client has to answer a ping.
+     *
+     * @return the timeout in seconds
+     */
+    long getPongTimeout() {
+        return pongTimeout;
+    }
+
+    /**
+     * Returns how long a connection can send nothing before it is closed.
+     *
+     * @return the timeout in seconds (0 for no limit)
+     */
+    long getReadIdleTimeout() {
+        return readIdleTimeout;
+    }
+
+    /**
+     * Returns how long a connection's pending writes can make no progress before it is closed.
+     *
+     * @return the timeout in seconds (0 for no limit)
+     */
+    long getWriteIdleTimeout() {
+        return writeIdleTimeout;
+    }
+
+    /**
+     * Applies the write buffer water marks to a channel. The order of the calls matters since Netty rejects a low
+     * water mark above the current high water mark (and vice versa).
+     *
+     * @param cc the channel's config
+     */
+    void applyWaterMarks(ChannelConfig cc) {
+        int high = writeBufferHighWaterMark;
+        int low = writeBufferLowWaterMark;
+        if (low > cc.getWriteBufferHighWaterMark()) {
+            cc.setWriteBufferHighWaterMark(high);
+            cc.setWriteBufferLowWaterMark(low);
+        } else {
+            cc.setWriteBufferLowWaterMark(low);
+            cc.setWriteBufferHighWaterMark(high);
+        }
+    }
+
+    static String getString(PropertyContainer config, String name) {
+        if (config != null) {
+            Object o = config.getPropertyValue(name);
+            if (o != null) {
+                String s = o.toString().trim();
+                return s.length() > 0 ? s : null;
+            }
+        }
+        return null;
+    }
+
+    static long getLong(PropertyContainer config, String name, long def, long min) {
+        Object o = config != null ? config.getPropertyValue(name) : null;
+        long v = def;
+        if (o instanceof Number) {
+            v = ((Number)o).longValue();
+        } else if (o != null) {
+            try {
+                v = Long.parseLong(o.toString().trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return v < min ? def : v;
+    }
+
+    static int getInt(PropertyContainer config, String name, int def, int min) {
+        return (int)Math.min(Integer.MAX_VALUE, getLong(config, name, def, min));
+    }
+
+    static boolean getBoolean(PropertyContainer config, String name, boolean def) {
+        Object o = config != null ? config.getPropertyValue(name) : null;
+        if (o instanceof Boolean) {
+            return (Boolean)o;
+        } else if (o != null) {
+            return Boolean.parseBoolean(o.toString().trim());
+        }
+        return def;
+    }
+}
@@ -25,48 +25,63 @@ import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.property.TypedProperty;
 import com.whizzosoftware.hobson.api.task.HobsonTask;
 import com.whizzosoftware.hobson.api.task.TaskContext;
-import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.EventLoopGroup;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import io.netty.handler.logging.LogLevel;
-import io.netty.handler.logging.LoggingHandler;
-import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-
 public class WebSocketsPlugin extends AbstractHobsonPlugin {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketsPlugin.class);
 
-    private static final int PORT = 8184;
-
-    private Channel channel;
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
+    private volatile WebSocketServer server;
     private final ChannelGroup clientChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final WebSocketsConfig config = new WebSocketsConfig();
+    private final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+    private final Metrics metrics = new Metrics(clientChannels);
+    private final EventDispatcher dispatcher = new EventDispatcher(clientChannels, subscriptions, new EventEncoder(PooledByteBufAllocator.DEFAULT, metrics), config);
+    private final TokenCache tokenCache = new TokenCache(config.getTokenCacheSize(), config.getTokenCacheTtl() * 1000);
+    private final TaskCache taskCache = new TaskCache(config.getTaskCacheSize(), new TaskCache.Loader() {
+        @Override
+        public HobsonTask load(TaskContext ctx) {
+            try {
+                return getTaskManager().getTask(ctx);
+            } catch (RuntimeException e) {
+                // the event is still sent (with just the task's ID) rather than lost
+                logger.debug("Unable to load task " + ctx, e);
+                return null;
+            }
+        }
+    });
+    private volatile AsyncDispatcher asyncDispatcher;
+    private volatile ConnectionLimiter connectionLimiter;
 
     public WebSocketsPlugin(String pluginId, String version, String description) {
         super(pluginId, version, description);
+        metrics.addCollector(new Metrics.Collector() {
+            @Override
+            public void collect(MetricsWriter w) {
+                collectMetrics(w);
+            }
+        });
     }
 
     @Override
     public void onPluginConfigurationUpdate(PropertyContainer config) {
+        this.config.update(config);
+        dispatcher.configurationUpdated();
+        tokenCache.setLimits(this.config.getTokenCacheSize(), this.config.getTokenCacheTtl() * 1000);
+        taskCache.setMaxEntries(this.config.getTaskCacheSize());
+        WebSocketServer ws = server;
+        if (ws != null && ws.restartIfChanged() && ws.isOpen()) {
+            publishWebSocketInfo();
+        }
     }
 
     @Override
     protected TypedProperty[] getConfigurationPropertyTypes() {
-        return null;
+        return WebSocketsConfig.getPropertyTypes();
     }
 
     @Override
@@ -81,19 +96,9 @@ public class WebSocketsPlugin extends AbstractHobsonPlugin {
 
     @EventHandler
     public void onDeviceEvent(DeviceEvent event) {
-        if (channel != null && channel.isOpen()) {
-            if (event instanceof DeviceVariablesUpdateEvent) {
-                logger.trace("Writing event to client channels: {}", event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createVariableUpdateJSON((DeviceVariablesUpdateEvent)event).toString()));
-            } else if (event instanceof DeviceUnavailableEvent) {
-                logger.trace("Writing event to client channels: {}", event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createDeviceJSON(event).toString()));
-            } else if (event instanceof DeviceAvailableEvent) {
-                logger.trace("Writing event to client channels: {}", event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createDeviceJSON(event).toString()));
-            } else if (event instanceof DeviceStartedEvent) {
-                logger.trace("Writing event to client channels: {}", event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createDeviceJSON(event).toString()));
+        if (isServerOpen()) {
+            if (event instanceof DeviceVariablesUpdateEvent || event instanceof DeviceUnavailableEvent || event instanceof DeviceAvailableEvent || event instanceof DeviceStartedEvent) {
+                enqueue(event);
             }
         } else {
             logger.trace("Channel not open; ignoring event: " + event);
@@ -102,9 +107,8 @@ public class WebSocketsPlugin extends AbstractHobsonPlugin {
 
     @EventHandler
     public void onPluginStatusChangeEvent(PluginStatusChangeEvent event) {
-        if (channel != null && channel.isOpen()) {
-            logger.trace("Writing event to client channels: " + event.toString());
-            clientChannels.writeAndFlush(new TextWebSocketFrame(createPluginStatusChangeJSON(event).toString()));
+        if (isServerOpen()) {
+            enqueue(event);
         } else {
             logger.trace("Channel not open; ignoring event: " + event);
         }
@@ -112,9 +116,8 @@ public class WebSocketsPlugin extends AbstractHobsonPlugin {
 
     @EventHandler
     public void onPresenceUpdateEvent(PresenceUpdateNotificationEvent event) {
-        if (channel != null && channel.isOpen()) {
-            logger.trace("Writing event to client channels: " + event.toString());
-            clientChannels.writeAndFlush(new TextWebSocketFrame(createPresenceUpdateJSON(event).toString()));
+        if (isServerOpen()) {
+            enqueue(event);
         } else {
             logger.trace("Channel not open; ignoring event: " + event);
         }
@@ -122,22 +125,9 @@ public class WebSocketsPlugin extends AbstractHobsonPlugin {
 
     @EventHandler
     public void onTaskEvent(TaskEvent event) {
-        if (channel != null && channel.isOpen()) {
-            if (event instanceof TaskExecutionEvent) {
-                logger.trace("Writing event to client channels: " + event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createTaskExecutionJSON((TaskExecutionEvent)event).toString()));
-            } else if (event instanceof TaskUpdatedEvent) {
-                logger.trace("Writing event to client channels: " + event.toString());
-                TaskUpdatedEvent e = (TaskUpdatedEvent)event;
-                HobsonTask task = getTaskManager().getTask(e.getTask());
-                if (task != null) {
-                    clientChannels.writeAndFlush(new TextWebSocketFrame(createTaskUpdatedJSON(e, task).toString()));
-                } else {
-                    logger.error("Received task update for non-existent task: {}", e.getTask());
-                }
-            } else if (event instanceof TaskDeletedEvent) {
-                logger.trace("Writing event to client channels: " + event.toString());
-                clientChannels.writeAndFlush(new TextWebSocketFrame(createTaskDeletedJSON((TaskDeletedEvent)event).toString()));
+        if (isServerOpen()) {
+            if (event instanceof TaskExecutionEvent || event instanceof TaskUpdatedEvent || event instanceof TaskDeletedEvent) {
+                enqueue(event);
             }
         } else {
             logger.trace("Channel not open; ignoring event: " + event);
@@ -146,151 +136,130 @@ public class WebSocketsPlugin extends AbstractHobsonPlugin {
 
     @EventHandler
     public void onHubConfigurationUpdateEvent(HubConfigurationUpdateEvent event) {
-        if (channel != null && channel.isOpen()) {
-            logger.trace("Writing event to client channels: " + event.toString());
-            clientChannels.writeAndFlush(new TextWebSocketFrame(createHubConfigurationJSON(event).toString()));
+        if (isServerOpen()) {
+            enqueue(event);
         }
     }
 
     @Override
     public void onStartup(PropertyContainer config) {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
-        ServerBootstrap b = new ServerBootstrap();
-
-        b.group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel.class)
-            .handler(new LoggingHandler(LogLevel.INFO))
-            .childHandler(new WebSocketServerInitializer(clientChannels, getAccessManager()));
-
-        b.bind(PORT).addListener(new GenericFutureListener<ChannelFuture>() {
-           @Override
-           public void operationComplete(ChannelFuture future) throws Exception {
-               WebSocketsPlugin.this.channel = future.channel();
-               logger.debug("WebSocket server started at port {}", PORT);
-               getHubManager().getLocalManager().setWebSocketInfo("ws", PORT, null);
-           }
+        this.config.update(config);
+        dispatcher.configurationUpdated();
+        tokenCache.setLimits(this.config.getTokenCacheSize(), this.config.getTokenCacheTtl() * 1000);
+        taskCache.setMaxEntries(this.config.getTaskCacheSize());
+        dispatcher.start();
+        asyncDispatcher = new AsyncDispatcher(this.config.getDispatchQueueSize(), this.config.getDispatchThreads(), new AsyncDispatcher.Handler() {
+            @Override
+            public void handle(HobsonEvent event) {
+                broadcast(event);
+            }
         });
+        asyncDispatcher.start();
+
+        WebSocketServerInitializer initializer = new WebSocketServerInitializer(clientChannels, getAccessManager(), tokenCache, subscriptions, dispatcher.getEncoder(), this.config, dispatcher.getReplayBuffer(), dispatcher.getStateSnapshot(), metrics);
+        connectionLimiter = initializer.getConnectionLimiter();
+        server = new WebSocketServer(this.config, initializer);
+        if (server.start()) {
+            publishWebSocketInfo();
+        }
     }
 
     @Override
     public void onShutdown() {
-        try {
-            channel.close().sync();
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-        } catch (InterruptedException e) {
-            logger.debug("Error shutting down WebSocket plugin", e);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.stop();
         }
-    }
-
-    private JSONObject createVariableUpdateJSON(DeviceVariablesUpdateEvent event) {
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        JSONArray updates = new JSONArray();
-        props.put("updates", updates);
-        for (DeviceVariableUpdate u : event.getUpdates()) {
-            JSONObject update = new JSONObject();
-            update.put("id", "/api/v1/hubs/" + u.getContext().getHubId() + "/plugins/local/" + u.getPluginId() + "/devices/" + u.getDeviceId() + "/variables/" + u.getContext().getName());
-            update.put("name", u.getContext().getName());
-            update.put("oldValue", u.getOldValue());
-            update.put("newValue", u.getNewValue());
-            update.put("hubId", u.getContext().getHubId());
-            update.put("pluginId", u.getPluginId());
-            update.put("deviceId", u.getDeviceId());
-            updates.put(update);
+        dispatcher.stop();
+        taskCache.clear();
+        if (server != null) {
+            server.stop();
         }
-        return json;
     }
 
-    private JSONObject createPresenceUpdateJSON(PresenceUpdateNotificationEvent event) {
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("hubId", event.getEntityContext().getHubId());
-        props.put("entityId", event.getEntityContext().getEntityId());
-        props.put("oldLocation", event.getOldLocation());
-        props.put("newLocation", event.getNewLocation());
-        return json;
+    private boolean isServerOpen() {
+        WebSocketServer ws = server;
+        return ws != null && ws.isOpen();
     }
 
-    private JSONObject createTaskExecutionJSON(TaskExecutionEvent event) {
-        HobsonTask task = getTaskManager().getTask(event.getContext());
-
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("id", "/api/v1/hubs/" + event.getContext().getHubId() + "/tasks/" + event.getContext().getTaskId());
-        props.put("name", task.getName());
-        return json;
+    private void publishWebSocketInfo() {
+        getHubManager().getLocalManager().setWebSocketInfo("ws", config.getPort(), null);
     }
 
-    private JSONObject createHubConfigurationJSON(HubConfigurationUpdateEvent event) {
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("configuration", props);
-        Map<String,Object> p = event.getConfiguration();
-        for (String key : p.keySet()) {
-            props.put(key, p.get(key));
+    /**
+     * Queues an event for asynchronous delivery so the event bus thread is never blocked by encoding or fan-out.
+     *
+     * @param event the event to send
+     */
+    private void enqueue(HobsonEvent event) {
+        metrics.eventReceived(event.getEventId());
+        AsyncDispatcher ad = asyncDispatcher;
+        if (ad != null) {
+            ad.enqueue(event);
         }
-        return json;
-    }
-
-    private JSONObject createDeviceJSON(DeviceEvent event) {
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("id", "/api/v1/hubs/" + event.getDeviceContext().getHubId() + "/plugins/local/" + event.getDeviceContext().getPluginId() + "/devices/" + event.getDeviceContext().getDeviceId());
-        return json;
     }
 
-    private JSONObject createPluginStatusChangeJSON(PluginStatusChangeEvent event) {
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("id", "/api/v1/hubs/" + event.getContext().getHubId() + "/plugins/local/" + event.getContext().getPluginId());
-        props.put("pluginId", event.getContext().getPluginId());
-        JSONObject status = new JSONObject();
-        status.put("code", event.getStatus().getCode());
-        status.put("message", event.getStatus().getMessage());
-        props.put("status", status);
-        return json;
+    /**
+     * Writes the metrics kept by the plugin's components.
+     *
+     * @param w the writer
+     */
+    private void collectMetrics(MetricsWriter w) {
+        String prefix = Metrics.PREFIX;
+        AsyncDispatcher ad = asyncDispatcher;
+        if (ad != null) {
+            w.gauge(prefix + "dispatch_queue_depth", "Events waiting to be dispatched", ad.getQueueDepth());
+            w.gauge(prefix + "dispatch_queue_capacity", "Capacity of the dispatch queue", ad.getQueueCapacity());
+            w.counter(prefix + "dispatch_rejected_total", "Events dropped because the dispatch queue was full", ad.getRejectedCount());
+            w.counter(prefix + "dispatch_processed_total", "Events dispatched to client channels", ad.getProcessedCount());
+            String name = prefix + "dispatch_latency_seconds";
+            w.family(name, "histogram", "Time from events being queued to their writes being issued").histogram(name, ad.getLatency());
+        }
+        WebSocketServer ws = server;
+        if (ws != null) {
+            w.gauge(prefix + "native_transport", "Whether the server uses the native epoll transport (1) or NIO (0)", ws.isNativeTransport() ? 1 : 0);
+        }
+        ConnectionLimiter cl = connectionLimiter;
+        if (cl != null) {
+            w.gauge(prefix + "sockets", "Open client sockets, including those that haven't completed a handshake", cl.getConnectionCount());
+            w.counter(prefix + "connections_rejected_total", "Connections rejected by admission control", cl.getRejectedCount());
+        }
+        ReplayBuffer replay = dispatcher.getReplayBuffer();
+        w.counter(prefix + "sequence", "Sequence number of the most recent event", replay.getSequence());
+        w.gauge(prefix + "replay_buffer_events", "Events held in the replay buffer", replay.size());
+        w.family(prefix + "cache_hits_total", "counter", "Cache hits by cache")
+            .sample(prefix + "cache_hits_total", tokenCache.getHits(), "cache", "token")
+            .sample(prefix + "cache_hits_total", taskCache.getHits(), "cache", "task");
+        w.family(prefix + "cache_misses_total", "counter", "Cache misses by cache")
+            .sample(prefix + "cache_misses_total", tokenCache.getMisses(), "cache", "token")
+            .sample(prefix + "cache_misses_total", taskCache.getMisses(), "cache", "task");
+        w.family(prefix + "cache_entries", "gauge", "Cache entries by cache")
+            .sample(prefix + "cache_entries", tokenCache.size(), "cache", "token")
+            .sample(prefix + "cache_entries", taskCache.size(), "cache", "task")
+            .sample(prefix + "cache_entries", dispatcher.getEncoder().getInterns().size(), "cache", "intern");
     }
 
-    private JSONObject createTaskUpdatedJSON(TaskUpdatedEvent event, HobsonTask task) {
-        TaskContext ctx = event.getTask();
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("id", "/api/v1/hubs/" + ctx.getHubId() + "/tasks/" + ctx.getTaskId());
-        props.put("name", task.getName());
-        props.put("description", task.getDescription());
-        props.put("enabled", task.isEnabled());
-        if (task.hasProperties()) {
-            JSONObject props2 = new JSONObject();
-            props.put("taskProperties", props2);
-            Map<String, Object> p = task.getProperties();
-            for (String key : p.keySet()) {
-                props2.put(key, p.get(key));
+    /**
+     * Resolves any task associated with an event and hands it to the dispatcher which routes it to the interested
+     * client channels. Tasks come from the task cache, so only the first execution of a task and task updates
+     * require a task manager lookup. This is called from the dispatch thread(s).
+     *
+     * @param event the event to send
+     */
+    private void broadcast(HobsonEvent event) {
+        if (event instanceof TaskExecutionEvent) {
+            dispatcher.dispatch(event, taskCache.get(((TaskExecutionEvent)event).getContext()));
+        } else if (event instanceof TaskUpdatedEvent) {
+            TaskUpdatedEvent e = (TaskUpdatedEvent)event;
+            HobsonTask task = taskCache.refresh(e.getTask());
+            if (task == null) {
+                logger.debug("Received task update for non-existent task: {}", e.getTask());
             }
+            dispatcher.dispatch(event, task);
+        } else if (event instanceof TaskDeletedEvent) {
+            taskCache.invalidate(((TaskDeletedEvent)event).getTask());
+            dispatcher.dispatch(event, null);
+        } else {
+            dispatcher.dispatch(event, null);
         }
-        return json;
-    }
-
-    private JSONObject createTaskDeletedJSON(TaskDeletedEvent event) {
-        TaskContext ctx = event.getTask();
-        JSONObject json = createEventJSON(event);
-        JSONObject props = new JSONObject();
-        json.put("properties", props);
-        props.put("id", "/api/v1/hubs/" + ctx.getHubId() + "/tasks/" + ctx.getTaskId());
-        return json;
-    }
-
-    private JSONObject createEventJSON(HobsonEvent event) {
-        JSONObject json = new JSONObject();
-        json.put("id", event.getEventId());
-        json.put("timestamp", event.getTimestamp());
-        return json;
     }
 }
@@ -0,0 +1,113 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AttributeKey;
+
+/**
+ * The formats events can be sent in. A client chooses one via the WebSocket subprotocol it requests during the
+ * handshake; clients that don't request a subprotocol receive JSON.
+ *
+ * @author Dan Noguerol
+ */
+enum WireFormat {
+    /**
+     * UTF-8 JSON sent as text frames.
+     */
+    JSON("hobson.json.v1", false, new byte[] {'['}, new byte[] {','}, new byte[] {']'}),
+    /**
+     * CBOR (RFC 7049) sent as binary frames, with recurring strings replaced by references to an intern table.
+     */
+    CBOR("hobson.cbor.v1", true, new byte[] {(byte)0x9f}, new byte[0], new byte[] {(byte)0xff});
+
+    /**
+     * The channel attribute holding the format selected during the handshake.
+     */
+    static final AttributeKey<WireFormat> KEY = AttributeKey.valueOf("hobson.wireFormat");
+
+    /**
+     * The supported subprotocols in order of preference.
+     */
+    static final String SUBPROTOCOLS = JSON.subprotocol + "," + CBOR.subprotocol;
+
+    private final String subprotocol;
+    private final boolean binary;
+    private final ByteBuf batchStart;
+    private final ByteBuf batchSeparator;
+    private final ByteBuf batchEnd;
+
+    WireFormat(String subprotocol, boolean binary, byte[] batchStart, byte[] batchSeparator, byte[] batchEnd) {
+        this.subprotocol = subprotocol;
+        this.binary = binary;
+        this.batchStart = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(batchStart));
+        this.batchSeparator = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(batchSeparator));
+        this.batchEnd = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(batchEnd));
+    }
+
+    String getSubprotocol() {
+        return subprotocol;
+    }
+
+    /**
+     * Indicates whether payloads in this format are sent as binary frames.
+     *
+     * @return a boolean
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the bytes that open a batch of payloads (i.e. an array).
+     *
+     * @return a ByteBuf the caller doesn't need to release
+     */
+    ByteBuf getBatchStart() {
+        return batchStart.duplicate();
+    }
+
+    /**
+     * Returns the bytes that separate the payloads in a batch.
+     *
+     * @return a (possibly empty) ByteBuf the caller doesn't need to release
+     */
+    ByteBuf getBatchSeparator() {
+        return batchSeparator.duplicate();
+    }
+
+    /**
+     * Returns the bytes that close a batch of payloads.
+     *
+     * @return a ByteBuf the caller doesn't need to release
+     */
+    ByteBuf getBatchEnd() {
+        return batchEnd.duplicate();
+    }
+
+    /**
+     * Returns the format for a negotiated subprotocol.
+     *
+     * @param subprotocol the subprotocol (or null if none was negotiated)
+     *
+     * @return a WireFormat (JSON if the subprotocol is null or unknown)
+     */
+    static WireFormat fromSubprotocol(String subprotocol) {
+        if (subprotocol != null) {
+            for (WireFormat f : values()) {
+                if (f.subprotocol.equalsIgnoreCase(subprotocol.trim())) {
+                    return f;
+                }
+            }
+        }
+        return JSON;
+    }
+}
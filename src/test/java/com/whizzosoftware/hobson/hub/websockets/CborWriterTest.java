@@ -0,0 +1,346 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceAvailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CborWriterTest {
+    @Test
+    public void testScalars() {
+        InternTable interns = new InternTable();
+        Map<String,Object> m = new HashMap<>();
+        m.put("string", "on");
+        m.put("unicode", "café € 😀");
+        m.put("small", 23);
+        m.put("byte", 255);
+        m.put("short", 65535);
+        m.put("int", 65536);
+        m.put("long", Long.MAX_VALUE);
+        m.put("negative", -25);
+        m.put("minLong", Long.MIN_VALUE);
+        m.put("float", 1.25f);
+        m.put("double", 0.1);
+        m.put("true", true);
+        m.put("false", false);
+
+        ByteBuf buf = Unpooled.buffer();
+        new CborWriter(buf, interns).value(m);
+        JSONObject o = (JSONObject)decode(buf, interns);
+        assertEquals("on", o.get("string"));
+        assertEquals("café € 😀", o.get("unicode"));
+        assertEquals(23L, o.get("small"));
+        assertEquals(255L, o.get("byte"));
+        assertEquals(65535L, o.get("short"));
+        assertEquals(65536L, o.get("int"));
+        assertEquals(Long.MAX_VALUE, o.get("long"));
+        assertEquals(-25L, o.get("negative"));
+        assertEquals(Long.MIN_VALUE, o.get("minLong"));
+        assertEquals(1.25, o.getDouble("float"), 0);
+        assertEquals(0.1, o.getDouble("double"), 0);
+        assertEquals(true, o.get("true"));
+        assertEquals(false, o.get("false"));
+        assertEquals(m.size(), o.length());
+    }
+
+    @Test
+    public void testOrgJsonValues() {
+        JSONObject nested = new JSONObject();
+        nested.put("name", "level");
+        nested.put("values", new JSONArray(Arrays.asList(1, "two", JSONObject.NULL)));
+        nested.put("missing", JSONObject.NULL);
+
+        ByteBuf buf = Unpooled.buffer();
+        new CborWriter(buf, null).beginObject().field("nested", nested).field("null", JSONObject.NULL).endObject();
+        JSONObject o = (JSONObject)decode(buf, null);
+        assertTrue(o.isNull("null"));
+        JSONObject n = o.getJSONObject("nested");
+        assertEquals("level", n.get("name"));
+        assertTrue(n.isNull("missing"));
+        JSONArray a = n.getJSONArray("values");
+        assertEquals(3, a.length());
+        assertEquals(1L, a.get(0));
+        assertEquals("two", a.get(1));
+        assertTrue(a.isNull(2));
+    }
+
+    @Test
+    public void testNamesAndIdsAreInterned() {
+        InternTable interns = new InternTable();
+        ByteBuf buf = Unpooled.buffer();
+        CborWriter w = new CborWriter(buf, interns);
+        w.beginObject().idField("id", "deviceAvailable").field("value", "deviceAvailable").endObject();
+        assertEquals(Arrays.asList("id", "deviceAvailable", "value"), interns.getStrings(Arrays.asList(0, 1, 2)));
+
+        // map, interned(0), interned(1), interned(2), text "deviceAvailable", break
+        assertEquals(0xbf, buf.getUnsignedByte(0));
+        assertEquals(0xd9, buf.getUnsignedByte(1));
+        assertEquals(CborWriter.TAG_INTERNED, buf.getUnsignedShort(2));
+        assertEquals(0x00, buf.getUnsignedByte(4));
+        assertEquals(0x01, buf.getUnsignedByte(8));
+        assertEquals(0x02, buf.getUnsignedByte(12));
+        assertEquals(0x60 | 15, buf.getUnsignedByte(13));
+        assertArrayEquals(new int[] {0, 1, 2}, CborWriter.getInternedIds(buf));
+
+        JSONObject o = (JSONObject)decode(buf, interns);
+        assertEquals("deviceAvailable", o.get("id"));
+        assertEquals("deviceAvailable", o.get("value"));
+    }
+
+    @Test
+    public void testGetInternedIds() {
+        InternTable interns = new InternTable();
+        for (int i = 0; i < 300; i++) {
+            interns.getId("s" + i);
+        }
+        ByteBuf buf = Unpooled.buffer();
+        // strings that look like the tag's encoding and a tag other than the interning one are skipped
+        new CborWriter(buf, interns).beginObject()
+            .field("s299", "\u00d9\u008b\u000b")
+            .field("s5", Arrays.asList(1.5, Long.MAX_VALUE, "s24"))
+            .idField("s1", "s256")
+            .endObject();
+        buf.writeByte(0xc1).writeByte(0x05);
+        assertArrayEquals(new int[] {299, 5, 1, 256}, CborWriter.getInternedIds(buf));
+        assertEquals(0, buf.readerIndex());
+    }
+
+    @Test
+    public void testVariableUrisAreNotInterned() {
+        InternTable interns = new InternTable();
+        ByteBuf buf = Unpooled.buffer();
+        new CborWriter(buf, interns).deviceUri("local", "plugin1", "device1", "on").deviceUri("local", "plugin1", "device1", null);
+        assertEquals(1, interns.size());
+        assertEquals(Collections.singletonList("/api/v1/hubs/local/plugins/local/plugin1/devices/device1"), interns.getStrings(Collections.singletonList(0)));
+        assertEquals(0x60 | 24, buf.getUnsignedByte(0));
+        assertArrayEquals(new int[] {0}, CborWriter.getInternedIds(buf));
+    }
+
+    @Test
+    public void testFullInternTableWritesInline() {
+        InternTable interns = new InternTable();
+        for (int i = 0; i < InternTable.MAX_ENTRIES; i++) {
+            assertEquals(i, interns.getId("s" + i));
+        }
+        assertEquals(-1, interns.getId("extra"));
+        assertEquals(5, interns.getId("s5"));
+
+        ByteBuf buf = Unpooled.buffer();
+        new CborWriter(buf, interns).beginObject().idField("extra", "s5").endObject();
+        JSONObject o = (JSONObject)decode(buf, interns);
+        assertEquals("s5", o.get("extra"));
+    }
+
+    @Test
+    public void testDeclaration() {
+        InternTable interns = new InternTable();
+        interns.getId("id");
+        interns.getId("deviceAvailable");
+        interns.getId("hubId");
+        ByteBuf buf = CborWriter.encodeDeclaration(interns, Arrays.asList(2, 1), UnpooledByteBufAllocator.DEFAULT);
+        JSONObject o = (JSONObject)decode(buf, null);
+        assertEquals("intern", o.get("id"));
+        JSONObject props = o.getJSONObject("properties");
+        JSONArray ids = props.getJSONArray("ids");
+        assertEquals(2, ids.length());
+        assertEquals(2L, ids.get(0));
+        assertEquals(1L, ids.get(1));
+        JSONArray strings = props.getJSONArray("strings");
+        assertEquals(2, strings.length());
+        assertEquals("hubId", strings.get(0));
+        assertEquals("deviceAvailable", strings.get(1));
+        buf.release();
+    }
+
+    @Test
+    public void testEventsMatchJson() {
+        EventEncoder encoder = new EventEncoder(UnpooledByteBufAllocator.DEFAULT);
+        DeviceContext dctx = DeviceContext.createLocal("plugin1", "device1");
+        List<DeviceVariableUpdate> updates = new ArrayList<>();
+        updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, "on"), false, true));
+        updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, "level"), null, 42));
+        updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, "temperature"), 21.5, 21.75));
+        HobsonEvent[] events = {
+            new DeviceAvailableEvent(1000, dctx),
+            new DeviceVariablesUpdateEvent(2000, updates)
+        };
+        for (HobsonEvent e : events) {
+            ByteBuf json = encoder.encode(e, null, 17, WireFormat.JSON);
+            ByteBuf cbor = encoder.encode(e, null, 17, WireFormat.CBOR);
+            assertSameStructure(new JSONObject(json.toString(CharsetUtil.UTF_8)), decode(cbor, encoder.getInterns()));
+            json.release();
+            cbor.release();
+        }
+    }
+
+    @Test
+    public void testMessagesMatchJson() {
+        EventEncoder encoder = new EventEncoder(UnpooledByteBufAllocator.DEFAULT);
+        Map<String,Object> props = new HashMap<>();
+        props.put("subscriptionId", "s1");
+        props.put("filter", new JSONObject("{\"events\":[\"deviceVarsUpdate\"],\"deviceId\":null,\"conflate\":250}"));
+        props.put("ids", Collections.singletonList("a"));
+        ByteBuf json = encoder.encodeMessage("subscribed", props, WireFormat.JSON);
+        ByteBuf cbor = encoder.encodeMessage("subscribed", props, WireFormat.CBOR);
+        JSONObject expected = new JSONObject(json.toString(CharsetUtil.UTF_8));
+        JSONObject actual = (JSONObject)decode(cbor, encoder.getInterns());
+        // each message is stamped when it is encoded
+        expected.remove("timestamp");
+        actual.remove("timestamp");
+        assertSameStructure(expected, actual);
+        json.release();
+        cbor.release();
+    }
+
+    private static void assertSameStructure(Object expected, Object actual) {
+        if (expected instanceof JSONObject) {
+            assertTrue(actual.toString(), actual instanceof JSONObject);
+            JSONObject e = (JSONObject)expected;
+            JSONObject a = (JSONObject)actual;
+            assertEquals(sortedKeys(e), sortedKeys(a));
+            for (Iterator<?> it = e.keys(); it.hasNext(); ) {
+                String key = (String)it.next();
+                assertSameStructure(e.get(key), a.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(actual.toString(), actual instanceof JSONArray);
+            JSONArray e = (JSONArray)expected;
+            JSONArray a = (JSONArray)actual;
+            assertEquals(e.length(), a.length());
+            for (int i = 0; i < e.length(); i++) {
+                assertSameStructure(e.get(i), a.get(i));
+            }
+        } else if (expected instanceof Number) {
+            assertTrue(actual.toString(), actual instanceof Number);
+            assertEquals(((Number)expected).doubleValue(), ((Number)actual).doubleValue(), 0);
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static List<String> sortedKeys(JSONObject o) {
+        List<String> keys = new ArrayList<>();
+        for (Iterator<?> it = o.keys(); it.hasNext(); ) {
+            keys.add((String)it.next());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Decodes a single CBOR item into org.json values, resolving string references against an intern table.
+     */
+    private static Object decode(ByteBuf buf, InternTable interns) {
+        Object o = readItem(buf, interns);
+        assertEquals("trailing bytes", 0, buf.readableBytes());
+        return o;
+    }
+
+    private static Object readItem(ByteBuf buf, InternTable interns) {
+        int initial = buf.readUnsignedByte();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+            case 0:
+                return readArgument(buf, info);
+            case 1:
+                return -1 - readArgument(buf, info);
+            case 3: {
+                byte[] b = new byte[(int)readArgument(buf, info)];
+                buf.readBytes(b);
+                return new String(b, CharsetUtil.UTF_8);
+            }
+            case 4: {
+                JSONArray a = new JSONArray();
+                if (info == 31) {
+                    while (buf.getUnsignedByte(buf.readerIndex()) != 0xff) {
+                        a.put(readItem(buf, interns));
+                    }
+                    buf.skipBytes(1);
+                } else {
+                    for (long i = readArgument(buf, info); i > 0; i--) {
+                        a.put(readItem(buf, interns));
+                    }
+                }
+                return a;
+            }
+            case 5: {
+                JSONObject o = new JSONObject();
+                assertEquals("maps are indefinite length", 31, info);
+                while (buf.getUnsignedByte(buf.readerIndex()) != 0xff) {
+                    Object key = readItem(buf, interns);
+                    assertTrue("keys are strings", key instanceof String);
+                    o.put((String)key, readItem(buf, interns));
+                }
+                buf.skipBytes(1);
+                return o;
+            }
+            case 6: {
+                assertEquals(CborWriter.TAG_INTERNED, readArgument(buf, info));
+                Object id = readItem(buf, interns);
+                assertNotNull("interned string without an intern table", interns);
+                int i = ((Long)id).intValue();
+                assertTrue("unknown interned string " + i, i < interns.size());
+                return interns.getStrings(Collections.singletonList(i)).get(0);
+            }
+            case 7:
+                switch (info) {
+                    case 20:
+                        return false;
+                    case 21:
+                        return true;
+                    case 22:
+                        return JSONObject.NULL;
+                    case 26:
+                        return (double)Float.intBitsToFloat(buf.readInt());
+                    case 27:
+                        return Double.longBitsToDouble(buf.readLong());
+                }
+        }
+        throw new AssertionError("Unexpected initial byte " + initial);
+    }
+
+    private static long readArgument(ByteBuf buf, int info) {
+        switch (info) {
+            case 24:
+                return buf.readUnsignedByte();
+            case 25:
+                return buf.readUnsignedShort();
+            case 26:
+                return buf.readUnsignedInt();
+            case 27:
+                return buf.readLong();
+            default:
+                assertTrue(info < 24);
+                return info;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClientConnectionTest {
+    private static final int FRAME_SIZE = 600;
+
+    @Test
+    public void testWritesDirectlyWhileWritable() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_OLDEST);
+        conn.send(payload('a'), null);
+        ch.runPendingTasks();
+        assertEquals(Arrays.asList('a'), readTags(ch));
+        assertEquals(1, conn.getFramesWritten());
+        assertEquals(1, conn.getFlushes());
+        assertEquals(0, conn.getPendingOutboundBytes());
+    }
+
+    @Test
+    public void testDropOldest() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_OLDEST);
+        ByteBuf c = payload('c');
+        fillAndOverflow(conn, null, c, payload('d'), null, payload('e'), null);
+        assertEquals(0, c.refCnt());
+        assertEquals(1, conn.getFramesDropped());
+
+        ch.runPendingTasks();
+        conn.drain();
+        assertEquals(Arrays.asList('a', 'b', 'd', 'e'), readTags(ch));
+    }
+
+    @Test
+    public void testDropNewest() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_NEWEST);
+        ByteBuf e = payload('e');
+        fillAndOverflow(conn, null, payload('c'), payload('d'), null, e, null);
+        assertEquals(0, e.refCnt());
+        assertEquals(1, conn.getFramesDropped());
+
+        ch.runPendingTasks();
+        conn.drain();
+        assertEquals(Arrays.asList('a', 'b', 'c', 'd'), readTags(ch));
+    }
+
+    @Test
+    public void testCoalesce() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.COALESCE);
+        ByteBuf c = payload('c');
+        fillAndOverflow(conn, "k1", c, payload('d'), "k2", payload('e'), "k1");
+        assertEquals(0, c.refCnt());
+        assertEquals(1, conn.getFramesDropped());
+
+        ch.runPendingTasks();
+        conn.drain();
+        // the newer payload takes the place of the one it replaces
+        assertEquals(Arrays.asList('a', 'b', 'e', 'd'), readTags(ch));
+    }
+
+    @Test
+    public void testResumeSequenceDiscardsReplayedEvents() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_OLDEST);
+        conn.setResumeSequence(10);
+        ByteBuf old = payload('a');
+        conn.send(old, 10, null);
+        conn.send(payload('b'), 11, null);
+        ch.runPendingTasks();
+        assertEquals(0, old.refCnt());
+        assertEquals(Arrays.asList('b'), readTags(ch));
+    }
+
+    @Test
+    public void testCloseReleasesQueuedFrames() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_OLDEST);
+        conn.send(payload('a'), null);
+        conn.send(payload('b'), null);
+        ByteBuf c = payload('c');
+        conn.send(c, null);
+        assertEquals(1, c.refCnt());
+        conn.close();
+        assertEquals(0, c.refCnt());
+        assertEquals(0, conn.getPendingOutboundBytes() - ch.unsafe().outboundBuffer().totalPendingWriteBytes());
+        ch.runPendingTasks();
+        readTags(ch);
+    }
+
+    @Test
+    public void testDeclaresOnlyReferencedInterns() {
+        EmbeddedChannel ch = newChannel();
+        ClientConnection conn = newConnection(ch, OverflowPolicy.DROP_OLDEST);
+        InternTable interns = new InternTable();
+        interns.getId("unused");
+        conn.setFormat(WireFormat.CBOR, interns);
+
+        conn.send(cbor(interns, "first"), null);
+        List<String> frames = readFrames(ch);
+        assertEquals(2, frames.size());
+        assertTrue(frames.get(0).contains("intern") && frames.get(0).contains("first") && frames.get(0).contains("id"));
+        assertFalse(frames.get(0).contains("unused"));
+
+        // only the entry this client hasn't been told about yet is declared
+        conn.send(cbor(interns, "second"), null);
+        frames = readFrames(ch);
+        assertEquals(2, frames.size());
+        assertTrue(frames.get(0).contains("second"));
+        assertFalse(frames.get(0).contains("first"));
+
+        conn.send(cbor(interns, "first"), null);
+        assertEquals(1, readFrames(ch).size());
+    }
+
+    /**
+     * Writes two frames, which takes the channel past its high water mark, then queues two more and overflows the
+     * queue with a fifth.
+     */
+    private static void fillAndOverflow(ClientConnection conn, String key1, ByteBuf p1, ByteBuf p2, String key2, ByteBuf p3, String key3) {
+        conn.send(payload('a'), null);
+        conn.send(payload('b'), null);
+        assertFalse(conn.getChannel().isWritable());
+        conn.send(p1, key1);
+        conn.send(p2, key2);
+        assertEquals(2 * FRAME_SIZE, conn.getPendingOutboundBytes() - conn.getChannel().unsafe().outboundBuffer().totalPendingWriteBytes());
+        conn.send(p3, key3);
+    }
+
+    private static EmbeddedChannel newChannel() {
+        EmbeddedChannel ch = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ch.config().setWriteBufferLowWaterMark(FRAME_SIZE / 2);
+        ch.config().setWriteBufferHighWaterMark(FRAME_SIZE * 3 / 2);
+        return ch;
+    }
+
+    private static ClientConnection newConnection(EmbeddedChannel ch, OverflowPolicy policy) {
+        return new ClientConnection(ch, 2, policy, new Metrics(new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)));
+    }
+
+    private static ByteBuf payload(char tag) {
+        byte[] b = new byte[FRAME_SIZE];
+        Arrays.fill(b, (byte)tag);
+        return Unpooled.wrappedBuffer(b);
+    }
+
+    private static ByteBuf cbor(InternTable interns, String value) {
+        ByteBuf buf = Unpooled.buffer();
+        new CborWriter(buf, interns).beginObject().idField("id", value).endObject();
+        return buf;
+    }
+
+    private static List<String> readFrames(EmbeddedChannel ch) {
+        ch.runPendingTasks();
+        List<String> frames = new ArrayList<>();
+        Object o;
+        while ((o = ch.readOutbound()) != null) {
+            WebSocketFrame f = (WebSocketFrame)o;
+            frames.add(f.content().toString(CharsetUtil.UTF_8));
+            f.release();
+        }
+        return frames;
+    }
+
+    private static List<Character> readTags(EmbeddedChannel ch) {
+        List<Character> tags = new ArrayList<>();
+        Object o;
+        while ((o = ch.readOutbound()) != null) {
+            TextWebSocketFrame f = (TextWebSocketFrame)o;
+            tags.add((char)f.content().getByte(0));
+            f.release();
+        }
+        return tags;
+    }
+}
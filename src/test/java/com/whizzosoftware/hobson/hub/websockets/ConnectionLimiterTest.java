@@ -0,0 +1,106 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConnectionLimiterTest {
+    @Test
+    public void testConnectRate() throws Exception {
+        ConnectionLimiter limiter = newLimiter(0, 0, 10, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(connect(limiter).isOpen());
+        }
+        assertFalse(connect(limiter).isOpen());
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(10, limiter.getConnectionCount());
+
+        // permits recover at the configured rate
+        Thread.sleep(250);
+        assertTrue(connect(limiter).isOpen());
+    }
+
+    @Test
+    public void testConnectRatePerAddress() {
+        ConnectionLimiter limiter = newLimiter(0, 0, 0, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(connect(limiter).isOpen());
+        }
+        assertFalse(connect(limiter).isOpen());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testMaxConnections() {
+        ConnectionLimiter limiter = newLimiter(2, 0, 0, 0);
+        EmbeddedChannel c1 = connect(limiter);
+        assertTrue(c1.isOpen());
+        assertTrue(connect(limiter).isOpen());
+        assertFalse(connect(limiter).isOpen());
+        assertEquals(2, limiter.getConnectionCount());
+
+        // closing an admitted connection frees its place but a rejected one never held one
+        c1.close();
+        c1.runPendingTasks();
+        assertEquals(1, limiter.getConnectionCount());
+        assertTrue(connect(limiter).isOpen());
+        assertFalse(connect(limiter).isOpen());
+        assertEquals(2, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testMaxConnectionsPerAddress() {
+        ConnectionLimiter limiter = newLimiter(0, 1, 0, 0);
+        EmbeddedChannel c1 = connect(limiter);
+        assertTrue(c1.isOpen());
+        assertFalse(connect(limiter).isOpen());
+        assertEquals(1, limiter.getConnectionCount());
+        c1.close();
+        c1.runPendingTasks();
+        assertEquals(0, limiter.getConnectionCount());
+        assertTrue(connect(limiter).isOpen());
+    }
+
+    @Test
+    public void testNoLimits() {
+        ConnectionLimiter limiter = newLimiter(0, 0, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(connect(limiter).isOpen());
+        }
+        assertEquals(0, limiter.getRejectedCount());
+    }
+
+    private static EmbeddedChannel connect(ConnectionLimiter limiter) {
+        return new EmbeddedChannel(limiter);
+    }
+
+    private static ConnectionLimiter newLimiter(int maxConnections, int maxPerAddress, int connectRate, int connectRatePerAddress) {
+        final Map<String,Object> props = new HashMap<>();
+        props.put(WebSocketsConfig.PROP_MAX_CONNECTIONS, maxConnections);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECTIONS_PER_ADDRESS, maxPerAddress);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECT_RATE, connectRate);
+        props.put(WebSocketsConfig.PROP_MAX_CONNECT_RATE_PER_ADDRESS, connectRatePerAddress);
+        WebSocketsConfig config = new WebSocketsConfig();
+        config.update(new PropertyContainer() {
+            @Override
+            public Object getPropertyValue(String name) {
+                return props.get(name);
+            }
+        });
+        return new ConnectionLimiter(config);
+    }
+}
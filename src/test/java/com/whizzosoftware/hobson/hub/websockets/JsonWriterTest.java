@@ -0,0 +1,134 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JsonWriterTest {
+    @Test
+    public void testScalarsMatchOrgJson() {
+        Map<String,Object> m = new HashMap<>();
+        m.put("string", "on");
+        m.put("int", 42);
+        m.put("long", Long.MIN_VALUE);
+        m.put("negative", -7);
+        m.put("double", 21.50);
+        m.put("wholeDouble", 100.0);
+        m.put("float", 1.25f);
+        m.put("true", true);
+        m.put("false", false);
+        m.put("null", null);
+        assertSameAsOrgJson(m);
+    }
+
+    @Test
+    public void testEscaping() {
+        Map<String,Object> m = new HashMap<>();
+        m.put("quote\"name", "a \"quoted\" \\ value");
+        m.put("control", "tab\there\nnewline\r\b\f\u0001");
+        m.put("unicode", "café € 😀 </script>");
+        assertSameAsOrgJson(m);
+    }
+
+    @Test
+    public void testNestedCollections() {
+        Map<String,Object> inner = new HashMap<>();
+        inner.put("a", 1);
+        inner.put("b", Arrays.asList("x", 2, false));
+        Map<String,Object> m = new HashMap<>();
+        m.put("map", inner);
+        m.put("list", new ArrayList<>(Arrays.asList(1, "two", inner)));
+        m.put("array", new int[] {1, 2, 3});
+        assertSameAsOrgJson(m);
+    }
+
+    @Test
+    public void testOrgJsonValuesAreNested() {
+        JSONObject value = new JSONObject("{\"mode\":\"heat\",\"setpoint\":21.5,\"schedule\":[1,2,{\"on\":true}],\"none\":null}");
+        JSONArray array = new JSONArray("[\"a\",1,null,{\"b\":false}]");
+
+        JSONObject expected = new JSONObject().put("object", value).put("array", array);
+
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            new JsonWriter(buf).beginObject().field("object", value).field("array", array).endObject();
+            String s = buf.toString(CharsetUtil.UTF_8);
+            assertEquals(expected.toString(), new JSONObject(s).toString());
+            assertTrue(s.contains("\"object\":{"));
+            assertTrue(s.contains("\"array\":["));
+            assertTrue(s.contains("\"none\":null"));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testUnknownObjectIsQuotedString() {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            new JsonWriter(buf).beginArray().value(new StringBuilder("sb")).value(Double.NaN).endArray();
+            assertEquals("[\"sb\",null]", buf.toString(CharsetUtil.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testSeparatorsAcrossNesting() {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            new JsonWriter(buf).beginObject()
+                .field("a", 1)
+                .name("b").beginArray().beginObject().field("c", true).endObject().beginObject().endObject().endArray()
+                .field("d", "e")
+                .endObject();
+            assertEquals("{\"a\":1,\"b\":[{\"c\":true},{}],\"d\":\"e\"}", buf.toString(CharsetUtil.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testEscapeHelper() {
+        assertArrayEquals("a\\\"b\\\\c\\n".getBytes(CharsetUtil.UTF_8), JsonWriter.escape("a\"b\\c\n"));
+    }
+
+    private static void assertSameAsOrgJson(Map<String,Object> m) {
+        List<String> keys = new ArrayList<>(m.keySet());
+        JSONObject expected = new JSONObject();
+        for (String k : keys) {
+            expected.put(k, m.get(k));
+        }
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            JsonWriter w = new JsonWriter(buf).beginObject();
+            for (String k : keys) {
+                w.field(k, m.get(k));
+            }
+            w.endObject();
+            assertEquals(expected.toString(), new JSONObject(buf.toString(CharsetUtil.UTF_8)).toString());
+        } finally {
+            buf.release();
+        }
+    }
+}
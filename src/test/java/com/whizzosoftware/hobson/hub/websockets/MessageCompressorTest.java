@@ -0,0 +1,129 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressorTest {
+    private static final UnpooledByteBufAllocator ALLOC = UnpooledByteBufAllocator.DEFAULT;
+
+    @Test
+    public void testOutputInflates() throws Exception {
+        byte[] b = events(50);
+        for (ByteBuf payload : new ByteBuf[] {Unpooled.wrappedBuffer(b), Unpooled.directBuffer().writeBytes(b)}) {
+            ByteBuf compressed = MessageCompressor.forLevel(6).compress(payload, ALLOC);
+            assertNotNull(compressed);
+            assertTrue(compressed.readableBytes() < b.length);
+            assertEquals(0, payload.readerIndex());
+            assertArrayEquals(b, inflate(compressed));
+            compressed.release();
+            payload.release();
+        }
+    }
+
+    @Test
+    public void testOutputLargerThanOneChunkInflates() throws Exception {
+        // compressible enough to be worth sending compressed but still larger than a chunk once compressed
+        byte[] b = new byte[64 * 1024];
+        Random r = new Random(1);
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)('a' + r.nextInt(8));
+        }
+        ByteBuf payload = Unpooled.wrappedBuffer(b);
+        ByteBuf compressed = MessageCompressor.forLevel(1).compress(payload, ALLOC);
+        assertTrue(compressed.readableBytes() > 8192);
+        assertArrayEquals(b, inflate(compressed));
+        compressed.release();
+    }
+
+    @Test
+    public void testSliceWithOffset() throws Exception {
+        byte[] b = events(10);
+        ByteBuf payload = Unpooled.wrappedBuffer(new byte[7], b).slice(7, b.length);
+        ByteBuf compressed = MessageCompressor.forLevel(9).compress(payload, ALLOC);
+        assertArrayEquals(b, inflate(compressed));
+        compressed.release();
+    }
+
+    @Test
+    public void testSkipsSmallAndIncompressiblePayloads() {
+        MessageCompressor c = MessageCompressor.forLevel(6);
+        assertNull(c.compress(Unpooled.copiedBuffer("{\"id\":\"ping\"}", CharsetUtil.UTF_8), ALLOC));
+        byte[] b = new byte[1024];
+        new Random(1).nextBytes(b);
+        assertNull(c.compress(Unpooled.wrappedBuffer(b), ALLOC));
+    }
+
+    @Test
+    public void testForLevelClamps() {
+        assertEquals(1, MessageCompressor.forLevel(0).getLevel());
+        assertEquals(9, MessageCompressor.forLevel(12).getLevel());
+        assertSame(MessageCompressor.forLevel(6), MessageCompressor.forLevel(6));
+    }
+
+    @Test
+    public void testDecompressRoundTrip() throws Exception {
+        byte[] b = events(20);
+        ByteBuf compressed = MessageCompressor.forLevel(6).compress(Unpooled.wrappedBuffer(b), ALLOC);
+        ByteBuf out = MessageCompressor.decompress(new Inflater(true), compressed, b.length, ALLOC);
+        assertArrayEquals(b, Arrays.copyOfRange(out.array(), out.arrayOffset() + out.readerIndex(), out.arrayOffset() + out.writerIndex()));
+        out.release();
+
+        try {
+            MessageCompressor.decompress(new Inflater(true), compressed, b.length - 1, ALLOC);
+            fail("Should have thrown exception");
+        } catch (DataFormatException ignored) {
+        }
+        compressed.release();
+    }
+
+    private static byte[] events(int count) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":\"deviceVarsUpdate\",\"seq\":").append(i).append(",\"updates\":[{\"pluginId\":\"plugin1\",\"deviceId\":\"device").append(i % 5).append("\",\"name\":\"level\",\"newValue\":").append(i).append("}]}");
+        }
+        return sb.append(']').toString().getBytes(CharsetUtil.UTF_8);
+    }
+
+    /**
+     * Decompresses a payload the way a client does: by restoring the trailing empty block the extension removes.
+     */
+    private static byte[] inflate(ByteBuf compressed) throws DataFormatException {
+        byte[] in = new byte[compressed.readableBytes() + 4];
+        compressed.getBytes(compressed.readerIndex(), in, 0, compressed.readableBytes());
+        in[in.length - 2] = (byte)0xff;
+        in[in.length - 1] = (byte)0xff;
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int n;
+        while ((n = inflater.inflate(chunk)) > 0) {
+            out.write(chunk, 0, n);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+}
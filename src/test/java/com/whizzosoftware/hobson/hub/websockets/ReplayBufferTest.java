@@ -0,0 +1,247 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceAvailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+    private final EventEncoder encoder = new EventEncoder(UnpooledByteBufAllocator.DEFAULT);
+
+    @Test
+    public void testReplaysEventsAfterLastSequence() {
+        ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long first = add(rb, "a");
+        add(rb, "b");
+        long last = add(rb, "c");
+        assertEquals(last, rb.getSequence());
+
+        List<ByteBuf> out = new ArrayList<>();
+        assertEquals(last, rb.getEventsAfter(first, WireFormat.JSON, encoder, null, out));
+        assertEquals("b", release(out.get(0)));
+        assertEquals("c", release(out.get(1)));
+        assertEquals(2, out.size());
+
+        out.clear();
+        assertEquals(last, rb.getEventsAfter(last, WireFormat.JSON, encoder, null, out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void testMissWhenSequenceIsInTheFuture() {
+        ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long seq = add(rb, "a");
+        List<ByteBuf> out = new ArrayList<>();
+        assertEquals(-1, rb.getEventsAfter(seq + 1, WireFormat.JSON, encoder, null, out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void testMissAfterEvictionByCount() {
+        ReplayBuffer rb = new ReplayBuffer(2, 60000);
+        long first = add(rb, "a");
+        long second = add(rb, "b");
+        add(rb, "c");
+        long last = add(rb, "d");
+        assertEquals(2, rb.size());
+
+        List<ByteBuf> out = new ArrayList<>();
+        assertEquals(-1, rb.getEventsAfter(first, WireFormat.JSON, encoder, null, out));
+        assertTrue(out.isEmpty());
+        // the oldest retained event follows directly, so nothing is missing
+        assertEquals(last, rb.getEventsAfter(second, WireFormat.JSON, encoder, null, out));
+        assertEquals("c", release(out.get(0)));
+        assertEquals("d", release(out.get(1)));
+    }
+
+    @Test
+    public void testMissAfterEvictionByAge() throws Exception {
+        ReplayBuffer rb = new ReplayBuffer(10, 20);
+        long first = add(rb, "a");
+        add(rb, "b");
+        Thread.sleep(50);
+        List<ByteBuf> out = new ArrayList<>();
+        assertEquals(-1, rb.getEventsAfter(first, WireFormat.JSON, encoder, null, out));
+        assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void testEvictionReleasesPayloads() {
+        ReplayBuffer rb = new ReplayBuffer(1, 60000);
+        ByteBuf p = payload("a");
+        long seq = rb.nextSequence();
+        rb.add(seq, null, null, WireFormat.JSON, p);
+        p.release();
+        assertEquals(1, p.refCnt());
+        add(rb, "b");
+        assertEquals(0, p.refCnt());
+    }
+
+    @Test
+    public void testEncodesOtherFormatsLazily() {
+        ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long start = rb.getSequence();
+        long seq = rb.nextSequence();
+        DeviceAvailableEvent event = new DeviceAvailableEvent(1000, DeviceContext.createLocal("plugin1", "device1"));
+        ByteBuf json = encoder.encode(event, null, seq, WireFormat.JSON);
+        rb.add(seq, event, null, WireFormat.JSON, json);
+        json.release();
+
+        List<ByteBuf> out = new ArrayList<>();
+        assertEquals(seq, rb.getEventsAfter(start, WireFormat.CBOR, encoder, null, out));
+        ByteBuf cbor = encoder.encode(event, null, seq, WireFormat.CBOR);
+        assertEquals(cbor, out.get(0));
+        cbor.release();
+        out.get(0).release();
+    }
+
+    @Test
+    public void testFiltersBySubscriptions() {
+        ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long start = rb.getSequence();
+        DeviceContext dctx = DeviceContext.createLocal("plugin1", "device1");
+        List<DeviceVariableUpdate> updates = new ArrayList<>();
+        updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, "on"), false, true));
+        updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, "level"), 10, 20));
+        DeviceVariablesUpdateEvent vars = new DeviceVariablesUpdateEvent(1000, updates);
+        long varsSeq = add(rb, vars);
+        add(rb, new DeviceAvailableEvent(1000, DeviceContext.createLocal("plugin2", "device1")));
+
+        // only the matching update of the variable event and nothing of the other event is replayed
+        List<ByteBuf> out = new ArrayList<>();
+        Subscription sub = new Subscription(null, "s1", null, null, "plugin1", null, "level", null);
+        rb.getEventsAfter(start, WireFormat.JSON, encoder, Collections.singletonList(sub), out);
+        assertEquals(1, out.size());
+        BitSet level = new BitSet();
+        level.set(1);
+        ByteBuf expected = encoder.encodeSubset(vars, level, varsSeq, WireFormat.JSON);
+        assertEquals(expected, out.get(0));
+        expected.release();
+        out.get(0).release();
+
+        // a channel without subscriptions receives nothing
+        out.clear();
+        rb.getEventsAfter(start, WireFormat.JSON, encoder, Collections.<Subscription>emptyList(), out);
+        assertTrue(out.isEmpty());
+
+        // a fully matching event is replayed from its retained payload
+        sub = new Subscription(null, "s1", null, null, null, "device1", null, null);
+        rb.getEventsAfter(start, WireFormat.JSON, encoder, Collections.singletonList(sub), out);
+        assertEquals(2, out.size());
+        for (ByteBuf b : out) {
+            b.release();
+        }
+    }
+
+    @Test
+    public void testAddsInSequenceOrder() throws Exception {
+        final ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long start = rb.getSequence();
+        final long first = rb.nextSequence();
+        final long second = rb.nextSequence();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuf p = payload("b");
+                synchronized (rb) {
+                    rb.awaitTurn(second);
+                    rb.add(second, null, null, WireFormat.JSON, p);
+                }
+                p.release();
+            }
+        });
+        t.start();
+        t.join(100);
+        // the second event waits for the first
+        assertTrue(t.isAlive());
+        assertEquals(start, rb.getSequence());
+
+        ByteBuf p = payload("a");
+        synchronized (rb) {
+            rb.awaitTurn(first);
+            rb.add(first, null, null, WireFormat.JSON, p);
+        }
+        p.release();
+        t.join();
+        assertEquals(second, rb.getSequence());
+        List<ByteBuf> out = new ArrayList<>();
+        rb.getEventsAfter(start, WireFormat.JSON, encoder, null, out);
+        assertEquals("a", release(out.get(0)));
+        assertEquals("b", release(out.get(1)));
+    }
+
+    @Test
+    public void testClear() {
+        ReplayBuffer rb = new ReplayBuffer(10, 60000);
+        long first = add(rb, "a");
+        long last = add(rb, "b");
+        rb.clear();
+        assertEquals(0, rb.size());
+        assertEquals(last, rb.getSequence());
+        assertEquals(-1, rb.getEventsAfter(first, WireFormat.JSON, encoder, null, new ArrayList<ByteBuf>()));
+    }
+
+    @Test
+    public void testDisabled() {
+        ReplayBuffer rb = new ReplayBuffer(0, 60000);
+        assertFalse(rb.isEnabled());
+        long seq = add(rb, "a");
+        assertEquals(0, rb.size());
+        assertEquals(seq, rb.getSequence());
+    }
+
+    private static long add(ReplayBuffer rb, String s) {
+        ByteBuf p = payload(s);
+        synchronized (rb) {
+            long seq = rb.nextSequence();
+            rb.awaitTurn(seq);
+            rb.add(seq, null, null, WireFormat.JSON, p);
+            p.release();
+            return seq;
+        }
+    }
+
+    private long add(ReplayBuffer rb, HobsonEvent event) {
+        synchronized (rb) {
+            long seq = rb.nextSequence();
+            ByteBuf p = encoder.encode(event, null, seq, WireFormat.JSON);
+            rb.awaitTurn(seq);
+            rb.add(seq, event, null, WireFormat.JSON, p);
+            p.release();
+            return seq;
+        }
+    }
+
+    private static ByteBuf payload(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.UTF_8);
+    }
+
+    private static String release(ByteBuf b) {
+        String s = b.toString(CharsetUtil.UTF_8);
+        b.release();
+        return s;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new RingBuffer<String>(1).capacity());
+        assertEquals(4, new RingBuffer<String>(3).capacity());
+        assertEquals(8, new RingBuffer<String>(8).capacity());
+        assertEquals(16, new RingBuffer<String>(9).capacity());
+    }
+
+    @Test
+    public void testEmptyAndFull() {
+        RingBuffer<Integer> rb = new RingBuffer<>(4);
+        assertNull(rb.poll());
+        assertEquals(0, rb.size());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(rb.offer(i));
+        }
+        assertEquals(4, rb.size());
+        assertFalse(rb.offer(4));
+        assertEquals(0, (int)rb.poll());
+        assertTrue(rb.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, (int)rb.poll());
+        }
+        assertNull(rb.poll());
+        assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void testWraparoundKeepsOrder() {
+        RingBuffer<Integer> rb = new RingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 100; round++) {
+            // offer and poll different amounts so positions wrap at every offset
+            for (int i = 0; i < 3 && rb.offer(next); i++) {
+                next++;
+            }
+            for (int i = 0; i < 2; i++) {
+                Integer v = rb.poll();
+                if (v != null) {
+                    assertEquals(expected++, (int)v);
+                }
+            }
+        }
+        Integer v;
+        while ((v = rb.poll()) != null) {
+            assertEquals(expected++, (int)v);
+        }
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final RingBuffer<Integer> rb = new RingBuffer<>(64);
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 20000;
+        final int total = producers * perProducer;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch consumed = new CountDownLatch(total);
+        Thread[] t = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            t[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!rb.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < consumers; c++) {
+            t[producers + c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (consumed.getCount() > 0) {
+                        Integer v = rb.poll();
+                        if (v != null) {
+                            seen.incrementAndGet(v);
+                            consumed.countDown();
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread th : t) {
+            th.start();
+        }
+        start.countDown();
+        for (Thread th : t) {
+            th.join();
+        }
+        for (int i = 0; i < total; i++) {
+            assertEquals("item " + i, 1, seen.get(i));
+        }
+        assertNull(rb.poll());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
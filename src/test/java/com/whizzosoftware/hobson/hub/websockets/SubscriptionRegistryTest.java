@@ -0,0 +1,213 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+    @Test
+    public void testNewChannelIsUnfiltered() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.addChannel(c);
+        assertTrue(reg.getUnfilteredChannels().contains(c));
+        assertTrue(match(reg, "deviceVarsUpdate", "local", "plugin1", "device1", "on").isEmpty());
+    }
+
+    @Test
+    public void testSubscribeRemovesFromUnfiltered() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.addChannel(c);
+        reg.subscribe(new Subscription(c, "s1", null, null, "plugin1", null, null, null));
+        assertFalse(reg.getUnfilteredChannels().contains(c));
+        assertEquals(1, reg.getSubscriptions(c).size());
+    }
+
+    @Test
+    public void testMatchByFilterFields() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.subscribe(new Subscription(c, "all", null, null, null, null, null, null));
+        reg.subscribe(new Subscription(c, "events", Collections.singleton("pluginStatusChange"), null, null, null, null, null));
+        reg.subscribe(new Subscription(c, "device", null, "local", "plugin1", "device1", null, null));
+        reg.subscribe(new Subscription(c, "variable", Collections.singleton("deviceVarsUpdate"), null, null, "device1", "on", null));
+
+        assertIds(match(reg, "deviceVarsUpdate", "local", "plugin1", "device1", "on"), "all", "device", "variable");
+        assertIds(match(reg, "deviceVarsUpdate", "local", "plugin1", "device1", "level"), "all", "device");
+        assertIds(match(reg, "deviceVarsUpdate", "local", "plugin2", "device1", "on"), "all", "variable");
+        assertIds(match(reg, "pluginStatusChange", "local", "plugin1", null, null), "all", "events");
+    }
+
+    @Test
+    public void testMatchesAgreeWithSubscription() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        List<Subscription> subs = new ArrayList<>();
+        String[] values = {null, "a", "b"};
+        int n = 0;
+        for (String hub : values) {
+            for (String plugin : values) {
+                for (String device : values) {
+                    Subscription s = new Subscription(c, "s" + n++, null, hub, plugin, device, null, null);
+                    reg.subscribe(s);
+                    subs.add(s);
+                }
+            }
+        }
+        for (String hub : values) {
+            for (String plugin : values) {
+                for (String device : values) {
+                    List<Subscription> results = match(reg, "deviceAvailable", hub, plugin, device, null);
+                    for (Subscription s : subs) {
+                        assertEquals(s.toString(), s.matches("deviceAvailable", hub, plugin, device, null), results.contains(s));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReplaceSubscription() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.subscribe(new Subscription(c, "s1", null, null, "plugin1", null, null, null));
+        reg.subscribe(new Subscription(c, "s1", null, null, "plugin2", null, null, null));
+        assertTrue(match(reg, "deviceAvailable", "local", "plugin1", "device1", null).isEmpty());
+        assertIds(match(reg, "deviceAvailable", "local", "plugin2", "device1", null), "s1");
+    }
+
+    @Test
+    public void testUnsubscribeLeavesChannelFiltered() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.addChannel(c);
+        reg.subscribe(new Subscription(c, "s1", null, null, null, null, null, null));
+        assertTrue(reg.unsubscribe(c, "s1"));
+        assertFalse(reg.unsubscribe(c, "s1"));
+        assertTrue(match(reg, "deviceAvailable", "local", "plugin1", "device1", null).isEmpty());
+        assertFalse(reg.getUnfilteredChannels().contains(c));
+    }
+
+    @Test
+    public void testRemoveChannel() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c1 = newChannel();
+        Channel c2 = newChannel();
+        reg.addChannel(c1);
+        reg.subscribe(new Subscription(c1, "s1", null, null, null, null, null, null));
+        reg.subscribe(new Subscription(c2, "s1", null, null, null, null, null, null));
+        reg.removeChannel(c1);
+        assertNull(reg.getSubscriptions(c1));
+        List<Subscription> results = match(reg, "deviceAvailable", "local", "plugin1", "device1", null);
+        assertEquals(1, results.size());
+        assertSame(c2, results.get(0).getChannel());
+    }
+
+    @Test
+    public void testSubscriptionLimit() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        for (int i = 0; i < SubscriptionRegistry.MAX_SUBSCRIPTIONS_PER_CHANNEL; i++) {
+            reg.subscribe(new Subscription(c, "s" + i, null, null, null, null, null, null));
+        }
+        // replacing an existing subscription is still allowed
+        reg.subscribe(new Subscription(c, "s0", null, "local", null, null, null, null));
+        try {
+            reg.subscribe(new Subscription(c, "extra", null, null, null, null, null, null));
+            fail("Should have thrown exception");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testFromJSON() {
+        Channel c = newChannel();
+        Subscription s = Subscription.fromJSON(c, new JSONObject("{\"subscriptionId\":\"s1\",\"events\":[\"deviceVarsUpdate\"],\"deviceId\":\"device1\",\"conflate\":250}"));
+        assertEquals("s1", s.getId());
+        assertEquals(Collections.singleton("deviceVarsUpdate"), s.getEvents());
+        assertNull(s.getPluginId());
+        assertEquals("device1", s.getDeviceId());
+        assertEquals(250L, (long)s.getConflateWindow());
+        try {
+            Subscription.fromJSON(c, new JSONObject("{\"deviceId\":\"device1\"}"));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+        JSONArray events = new JSONArray();
+        for (int i = 0; i <= Subscription.MAX_EVENTS; i++) {
+            events.put("event" + i);
+        }
+        try {
+            Subscription.fromJSON(c, new JSONObject().put("subscriptionId", "s1").put("events", events));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testWindowInUse() {
+        SubscriptionRegistry reg = new SubscriptionRegistry();
+        Channel c = newChannel();
+        reg.subscribe(new Subscription(c, "s1", null, null, null, null, null, 300L));
+        reg.subscribe(new Subscription(c, "s2", null, null, null, null, null, 250L));
+        reg.subscribe(new Subscription(c, "s3", null, null, null, null, null, 0L));
+        assertTrue(reg.isWindowInUse(250));
+        assertFalse(reg.isWindowInUse(0));
+        reg.unsubscribe(c, "s1");
+        assertTrue(reg.isWindowInUse(250));
+        reg.subscribe(new Subscription(c, "s2", null, null, null, null, null, 1000L));
+        assertFalse(reg.isWindowInUse(250));
+        assertTrue(reg.isWindowInUse(1000));
+        reg.removeChannel(c);
+        assertFalse(reg.isWindowInUse(1000));
+    }
+
+    @Test
+    public void testNormalizeWindow() {
+        assertEquals(0, EventDispatcher.normalizeWindow(0));
+        assertEquals(0, EventDispatcher.normalizeWindow(-5));
+        assertEquals(50, EventDispatcher.normalizeWindow(1));
+        assertEquals(250, EventDispatcher.normalizeWindow(499));
+        assertEquals(500, EventDispatcher.normalizeWindow(500));
+        assertEquals(60000, EventDispatcher.normalizeWindow(Long.MAX_VALUE));
+    }
+
+    private static Channel newChannel() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    }
+
+    private static List<Subscription> match(SubscriptionRegistry reg, String eventId, String hubId, String pluginId, String deviceId, String variable) {
+        List<Subscription> results = new ArrayList<>();
+        reg.match(eventId, hubId, pluginId, deviceId, variable, results);
+        return results;
+    }
+
+    private static void assertIds(List<Subscription> results, String... ids) {
+        List<String> actual = new ArrayList<>();
+        for (Subscription s : results) {
+            actual.add(s.getId());
+        }
+        Collections.sort(actual);
+        assertEquals(Arrays.asList(ids), actual);
+    }
+}
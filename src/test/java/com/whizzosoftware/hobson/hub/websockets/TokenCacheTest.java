@@ -0,0 +1,120 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import com.whizzosoftware.hobson.api.security.HobsonUser;
+import org.jose4j.base64url.Base64Url;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenCacheTest {
+    private static final long FAR_FUTURE = 4102444800L;
+
+    private final HobsonUser user = new HobsonUser.Builder("user1").build();
+
+    @Test
+    public void testHitAndMiss() {
+        TokenCache cache = new TokenCache(10, 60000);
+        String token = jws("user1", FAR_FUTURE);
+        assertNull(cache.get(token));
+        cache.put(token, user);
+        assertSame(user, cache.get(token));
+        assertNull(cache.get(jws("user2", FAR_FUTURE)));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testExpiresAfterTtl() throws Exception {
+        TokenCache cache = new TokenCache(10, 200);
+        String token = jws("user1", FAR_FUTURE);
+        cache.put(token, user);
+        assertSame(user, cache.get(token));
+        Thread.sleep(300);
+        assertNull(cache.get(token));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiresAtExpClaim() throws Exception {
+        TokenCache cache = new TokenCache(10, 60000);
+        long exp = System.currentTimeMillis() / 1000 + 1;
+        String token = jws("user1", exp);
+        cache.put(token, user);
+        Thread.sleep(exp * 1000 - System.currentTimeMillis() + 50);
+        assertNull(cache.get(token));
+
+        // an already expired token isn't cached at all
+        cache.put(jws("user2", 1L), user);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTokensWithoutReadableExpExpireAfterTtl() throws Exception {
+        TokenCache cache = new TokenCache(10, 200);
+        String jwe = "eyJhbGciOiJkaXIiLCJlbmMiOiJBMTI4Q0JDLUhTMjU2In0..iv.ciphertext.tag";
+        assertNull(TokenCache.getExpiration(jwe));
+        assertNull(TokenCache.getExpiration(jws("user1", null)));
+        assertEquals(FAR_FUTURE * 1000, (long)TokenCache.getExpiration(jws("user1", FAR_FUTURE)));
+
+        cache.put(jwe, user);
+        cache.put(jws("user1", null), user);
+        cache.put("opaque-token", user);
+        assertEquals(3, cache.size());
+        assertSame(user, cache.get(jwe));
+        Thread.sleep(300);
+        assertNull(cache.get(jwe));
+        assertNull(cache.get("opaque-token"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        TokenCache cache = new TokenCache(2, 60000);
+        String t1 = jws("user1", FAR_FUTURE);
+        String t2 = jws("user2", FAR_FUTURE);
+        String t3 = jws("user3", FAR_FUTURE);
+        cache.put(t1, user);
+        cache.put(t2, user);
+        assertNotNull(cache.get(t1));
+        cache.put(t3, user);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(t1));
+        assertNull(cache.get(t2));
+        assertNotNull(cache.get(t3));
+    }
+
+    @Test
+    public void testChangingLimitsClearsCache() {
+        TokenCache cache = new TokenCache(10, 60000);
+        String token = jws("user1", FAR_FUTURE);
+        cache.put(token, user);
+        cache.setLimits(10, 60000);
+        assertEquals(1, cache.size());
+        cache.setLimits(5, 60000);
+        assertEquals(0, cache.size());
+        cache.setLimits(0, 60000);
+        cache.put(token, user);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testHash() {
+        String h = TokenCache.hash("token");
+        assertEquals(64, h.length());
+        assertEquals(h, TokenCache.hash("token"));
+        assertFalse(h.equals(TokenCache.hash("token2")));
+    }
+
+    private static String jws(String subject, Long exp) {
+        String claims = "{\"sub\":\"" + subject + "\"" + (exp != null ? ",\"exp\":" + exp : "") + "}";
+        return Base64Url.encodeUtf8ByteRepresentation("{\"alg\":\"HS256\"}") + "." + Base64Url.encodeUtf8ByteRepresentation(claims) + ".signature";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2016 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.hub.websockets;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VariableConflatorTest {
+    @Test
+    public void testMergesUpdatesPerVariable() {
+        VariableConflator c = new VariableConflator(100);
+        assertTrue(c.isEmpty());
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", 10, 20);
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", 20, 30);
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "on", false, true);
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", 30, 40);
+        assertFalse(c.isEmpty());
+
+        Map<String,VariableConflator.PendingUpdate> updates = drain(c);
+        assertEquals(2, updates.size());
+        VariableConflator.PendingUpdate level = updates.get("level");
+        assertEquals(10, level.oldValue);
+        assertEquals(40, level.newValue);
+        VariableConflator.PendingUpdate on = updates.get("on");
+        assertEquals(false, on.oldValue);
+        assertEquals(true, on.newValue);
+
+        assertTrue(c.isEmpty());
+        assertTrue(c.drain().isEmpty());
+    }
+
+    @Test
+    public void testKeyIncludesDevice() {
+        VariableConflator c = new VariableConflator(100);
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", null, 1);
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device2", "level", null, 2);
+        c.offer("deviceVarsUpdate", "local", "plugin2", "device1", "level", null, 3);
+        assertEquals(3, c.drain().size());
+    }
+
+    @Test
+    public void testConcurrentOffersKeepFirstOldValue() throws Exception {
+        final VariableConflator c = new VariableConflator(100);
+        final int threads = 4;
+        final int offers = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger value = new AtomicInteger();
+        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", "initial", value.get());
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < offers; j++) {
+                        int v = value.incrementAndGet();
+                        c.offer("deviceVarsUpdate", "local", "plugin1", "device1", "level", v - 1, v);
+                    }
+                }
+            });
+            t[i].start();
+        }
+        start.countDown();
+        for (Thread th : t) {
+            th.join();
+        }
+        VariableConflator.PendingUpdate u = drain(c).get("level");
+        assertEquals("initial", u.oldValue);
+    }
+
+    private static Map<String,VariableConflator.PendingUpdate> drain(VariableConflator c) {
+        List<VariableConflator.PendingUpdate> l = c.drain();
+        Map<String,VariableConflator.PendingUpdate> m = new HashMap<>();
+        for (VariableConflator.PendingUpdate u : l) {
+            m.put(u.key.name, u);
+        }
+        return m;
+    }
+}